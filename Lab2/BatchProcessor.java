@@ -0,0 +1,343 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пакетная обработка каталога изображений без интерфейса.
+ * Чтение, обработка и запись PNG — отдельные стадии со своими пулами потоков,
+ * связанные ограниченными очередями: пока одни потоки распаковывают и сжимают файлы,
+ * другие считают фильтры, а полная очередь приостанавливает предыдущую стадию,
+ * так что в памяти одновременно не больше нескольких изображений.
+ *
+ * Запуск: java Main --batch входной_каталог выходной_каталог "цепочка" [--gray]
+ * [--threads чтение,обработка,запись] [--queue ёмкость] [--pool МБ]. Цепочка записывается так же,
+ * как в режиме "Цепочка операций"; --gray переводит изображения в полутоновые, как это
+ * делает морфологическая обработка в окне программы; --pool ограничивает объём BufferPool.
+ *
+ * Буферы каналов и изображения результатов берутся из BufferPool: результат возвращается
+ * в пул после записи PNG, так что на изображения одного размера новая память не выделяется.
+ */
+final class BatchProcessor {
+
+    private static final String[] EXTENSIONS = {"png", "jpg", "jpeg", "bmp", "gif", "tif", "tiff"};
+
+    /** Изображение между стадиями; name == null — сигнал завершения стадии. */
+    private static final class Item {
+        static final Item END = new Item(null, null);
+
+        final String name;
+        final BufferedImage image;
+
+        Item(String name, BufferedImage image) {
+            this.name = name;
+            this.image = image;
+        }
+    }
+
+    private final File inputDirectory;
+    private final File outputDirectory;
+    private final RowPipeline pipeline;
+    private final boolean grayscale;
+    private final int decodeThreads;
+    private final int processThreads;
+    private final int encodeThreads;
+    private final int queueCapacity;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong pixels = new AtomicLong();
+    // Суммарное время работы потоков каждой стадии, нс: показывает, какая стадия ограничивает скорость
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong processNanos = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+
+    BatchProcessor(File inputDirectory, File outputDirectory, RowPipeline pipeline, boolean grayscale,
+                   int decodeThreads, int processThreads, int encodeThreads, int queueCapacity) {
+        this.inputDirectory = inputDirectory;
+        this.outputDirectory = outputDirectory;
+        this.pipeline = pipeline;
+        this.grayscale = grayscale;
+        this.decodeThreads = Math.max(1, decodeThreads);
+        this.processThreads = Math.max(1, processThreads);
+        this.encodeThreads = Math.max(1, encodeThreads);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /** Разбирает аргументы командной строки, выполняет обработку и возвращает код завершения. */
+    static int run(String[] args) {
+        if (args.length < 4) {
+            printUsage();
+            return 2;
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] threads = {Math.max(1, processors / 4), processors, Math.max(1, processors / 2)};
+        int queue = 2 * processors;
+        boolean grayscale = false;
+        RowPipeline pipeline;
+
+        try {
+            pipeline = RowPipeline.parse(args[3]);
+            for (int i = 4; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--gray":
+                        grayscale = true;
+                        break;
+                    case "--threads":
+                        String[] counts = args[++i].split(",");
+                        if (counts.length != 3) {
+                            throw new IllegalArgumentException("--threads ожидает три числа через запятую");
+                        }
+                        for (int k = 0; k < 3; k++) {
+                            threads[k] = Integer.parseInt(counts[k].trim());
+                        }
+                        break;
+                    case "--queue":
+                        queue = Integer.parseInt(args[++i]);
+                        break;
+                    case "--pool":
+                        BufferPool.setCapacity(Long.parseLong(args[++i]) << 20);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("неизвестный параметр " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Ошибка в параметрах: " + ex.getMessage());
+            printUsage();
+            return 2;
+        }
+
+        File input = new File(args[1]);
+        File output = new File(args[2]);
+        if (!input.isDirectory()) {
+            System.err.println("Нет входного каталога: " + input);
+            return 2;
+        }
+        if (!output.isDirectory() && !output.mkdirs()) {
+            System.err.println("Не удалось создать выходной каталог: " + output);
+            return 2;
+        }
+
+        BatchProcessor batch = new BatchProcessor(input, output, pipeline, grayscale,
+                threads[0], threads[1], threads[2], queue);
+        try {
+            batch.process();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        return batch.failed.get() == 0 ? 0 : 1;
+    }
+
+    private static void printUsage() {
+        System.err.println("Использование: java Main --batch входной_каталог выходной_каталог \"цепочка\" [--gray]"
+                + " [--threads чтение,обработка,запись] [--queue ёмкость] [--pool МБ]");
+        System.err.println("Цепочка: этапы через пробел — gauss:размер:sigma, average:размер, median:размер,"
+                + " threshold:порог, erosion/dilation/opening/closing:элемент (square3, square5, disk, cross,"
+                + " squareN, diskN, crossN)");
+    }
+
+    void process() throws InterruptedException {
+        File[] files = inputDirectory.listFiles(file -> file.isFile() && isImage(file));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+
+        // a.png и a.jpg дали бы один выходной файл a.png: второй и следующие не обрабатываются
+        Map<String, String> outputs = new HashMap<>();
+        List<File> unique = new ArrayList<>();
+        for (File file : files) {
+            String output = baseName(file.getName()).toLowerCase(Locale.ROOT) + ".png";
+            String previous = outputs.putIfAbsent(output, file.getName());
+            if (previous == null) {
+                unique.add(file);
+            } else {
+                fail(file.getName(), "выходной файл " + output + " совпадает с выходным файлом " + previous);
+            }
+        }
+
+        BlockingQueue<Item> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> filtered = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger nextFile = new AtomicInteger();
+        File[] inputs = unique.toArray(new File[0]);
+
+        ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+        ExecutorService processors = Executors.newFixedThreadPool(processThreads);
+        ExecutorService encoders = Executors.newFixedThreadPool(encodeThreads);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < decodeThreads; i++) {
+            decoders.execute(() -> decodeLoop(inputs, nextFile, decoded));
+        }
+        for (int i = 0; i < processThreads; i++) {
+            processors.execute(() -> processLoop(decoded, filtered));
+        }
+        for (int i = 0; i < encodeThreads; i++) {
+            encoders.execute(() -> encodeLoop(filtered));
+        }
+
+        // Стадия завершена — каждому потоку следующей стадии отправляется сигнал конца
+        awaitStage(decoders);
+        for (int i = 0; i < processThreads; i++) {
+            decoded.put(Item.END);
+        }
+        awaitStage(processors);
+        for (int i = 0; i < encodeThreads; i++) {
+            filtered.put(Item.END);
+        }
+        awaitStage(encoders);
+
+        printReport(files.length, System.nanoTime() - start);
+    }
+
+    private static void awaitStage(ExecutorService stage) throws InterruptedException {
+        stage.shutdown();
+        while (!stage.awaitTermination(1, TimeUnit.MINUTES)) {
+            // ждём, пока стадия обработает все изображения
+        }
+    }
+
+    private void decodeLoop(File[] files, AtomicInteger next, BlockingQueue<Item> out) {
+        for (int i = next.getAndIncrement(); i < files.length; i = next.getAndIncrement()) {
+            File file = files[i];
+            try {
+                long started = System.nanoTime();
+                BufferedImage image = ImageIO.read(file);
+                if (image == null) {
+                    fail(file.getName(), "неизвестный формат");
+                    continue;
+                }
+                // Приведение к каноническому формату — часть декодирования, в потоках чтения
+                image = ImageFormat.normalize(image);
+                decodeNanos.addAndGet(System.nanoTime() - started);
+                bytesRead.addAndGet(file.length());
+                out.put(new Item(baseName(file.getName()), image));
+            } catch (IOException ex) {
+                fail(file.getName(), ex.getMessage());
+            } catch (RuntimeException ex) {
+                // Повреждённый файл может сломать декодер не только IOException
+                fail(file.getName(), ex.toString());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void processLoop(BlockingQueue<Item> in, BlockingQueue<Item> out) {
+        try {
+            for (Item item = in.take(); item != Item.END; item = in.take()) {
+                try {
+                    long started = System.nanoTime();
+                    BufferedImage result = apply(item.image);
+                    processNanos.addAndGet(System.nanoTime() - started);
+                    out.put(new Item(item.name, result));
+                } catch (RuntimeException ex) {
+                    fail(item.name, ex.toString());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void encodeLoop(BlockingQueue<Item> in) {
+        try {
+            for (Item item = in.take(); item != Item.END; item = in.take()) {
+                File file = new File(outputDirectory, item.name + ".png");
+                try {
+                    long started = System.nanoTime();
+                    ImageIO.write(item.image, "png", file);
+                    encodeNanos.addAndGet(System.nanoTime() - started);
+                    bytesWritten.addAndGet(file.length());
+                    pixels.addAndGet((long) item.image.getWidth() * item.image.getHeight());
+                    processed.incrementAndGet();
+                } catch (IOException | RuntimeException ex) {
+                    fail(item.name, ex.toString());
+                } finally {
+                    BufferPool.releaseImage(item.image);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Обработка одного изображения в потоке стадии: каналы по очереди, целиком. */
+    private BufferedImage apply(BufferedImage image) {
+        PixelBuffer src;
+        if (grayscale) {
+            src = BufferPool.borrow(image.getWidth(), image.getHeight(), 1);
+            src.drawGray(image);
+        } else {
+            src = BufferPool.fromImage(image);
+        }
+        PixelBuffer dst = BufferPool.borrowCompatible(src);
+
+        for (int c = 0; c < src.channels(); c++) {
+            pipeline.run(src.planes[c], dst.planes[c], src.width, src.height, 0, src.height);
+        }
+
+        // Изображение уже приведено к каноническому типу на стадии чтения
+        int type = src.channels() == 1 ? BufferedImage.TYPE_BYTE_GRAY : image.getType();
+        BufferedImage result = BufferPool.borrowImage(src.width, src.height, type);
+        dst.writeTo(result);
+        BufferPool.release(src, dst);
+        return result;
+    }
+
+    private void fail(String name, String message) {
+        failed.incrementAndGet();
+        System.err.println("Ошибка: " + name + ": " + message);
+    }
+
+    private void printReport(int total, long nanos) {
+        double seconds = nanos / 1e9;
+        double megabytesIn = bytesRead.get() / 1e6;
+        double megabytesOut = bytesWritten.get() / 1e6;
+        int done = processed.get();
+
+        System.out.printf(Locale.ROOT, "Обработано: %d из %d, ошибок: %d, время %.2f с%n", done, total, failed.get(), seconds);
+        System.out.printf(Locale.ROOT, "Скорость: %.2f изобр./с, чтение %.2f МБ/с, запись %.2f МБ/с, %.2f Мпикс/с%n",
+                done / seconds, megabytesIn / seconds, megabytesOut / seconds, pixels.get() / 1e6 / seconds);
+        System.out.printf(Locale.ROOT, "Время потоков по стадиям: чтение %.2f с (%d), обработка %.2f с (%d), запись %.2f с (%d)%n",
+                decodeNanos.get() / 1e9, decodeThreads, processNanos.get() / 1e9, processThreads,
+                encodeNanos.get() / 1e9, encodeThreads);
+        System.out.printf(Locale.ROOT, "Кэш ядер: попаданий %d, промахов %d%n", KernelCache.hits(), KernelCache.misses());
+        System.out.printf(Locale.ROOT, "Пул буферов: из пула %d, создано %d, вытеснено %d, свободно %.1f МБ%n",
+                BufferPool.hits(), BufferPool.misses(), BufferPool.evictions(), BufferPool.pooledBytes() / 1e6);
+    }
+
+    private static boolean isImage(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith("." + extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+}
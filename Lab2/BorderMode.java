@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * Правило продолжения канала за его границу, общее для свёртки, медианы и морфологии.
+ * Индексы за пределами [0, n) приводятся к пикселю канала, а для CONSTANT — к значению
+ * CONSTANT_VALUE. Ядра вызывают index только для крайних radius пикселей строки
+ * и один раз на строку окна; внутренние пиксели обрабатываются без проверок границ.
+ */
+enum BorderMode {
+    /** aaa|abcd|ddd — повторение крайнего пикселя. */
+    CLAMP("Повтор края"),
+    /** cb|abcd|cb — зеркальное отражение без повторения крайнего пикселя. */
+    REFLECT("Отражение"),
+    /** cd|abcd|ab — периодическое продолжение. */
+    WRAP("Период"),
+    /** 00|abcd|00 — постоянное значение CONSTANT_VALUE. */
+    CONSTANT("Константа 0");
+
+    static final int CONSTANT_VALUE = 0;
+
+    private final String title;
+
+    BorderMode(String title) {
+        this.title = title;
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+
+    /** Индекс пикселя в [0, n), соответствующего позиции i, или -1 для CONSTANT за границей. */
+    int index(int i, int n) {
+        if (i >= 0 && i < n) {
+            return i;
+        }
+        switch (this) {
+            case CLAMP:
+                return i < 0 ? 0 : n - 1;
+            case REFLECT:
+                if (n == 1) {
+                    return 0;
+                }
+                int period = 2 * (n - 1);
+                int folded = Math.floorMod(i, period);
+                return folded < n ? folded : period - folded;
+            case WRAP:
+                return Math.floorMod(i, n);
+            default:
+                return -1;
+        }
+    }
+
+    /** Значение пикселя в позиции i строки src[offset .. offset + n). */
+    int value(byte[] src, int offset, int i, int n) {
+        int index = index(i, n);
+        return index < 0 ? CONSTANT_VALUE : src[offset + index] & 0xFF;
+    }
+
+    /**
+     * Дополненная строка: out[i] — пиксель в позиции from + i строки src[offset .. offset + n),
+     * для позиций [from, to). Внутренняя часть копируется целиком, по правилу — только края.
+     */
+    void padRow(byte[] src, int offset, int n, int from, int to, byte[] out) {
+        int inside0 = Math.max(from, 0);
+        int inside1 = Math.min(to, n);
+        for (int i = from; i < Math.min(inside0, to); i++) {
+            out[i - from] = (byte) value(src, offset, i, n);
+        }
+        if (inside0 < inside1) {
+            System.arraycopy(src, offset + inside0, out, inside0 - from, inside1 - inside0);
+        }
+        for (int i = Math.max(inside1, from); i < to; i++) {
+            out[i - from] = (byte) value(src, offset, i, n);
+        }
+    }
+
+    /**
+     * Дополненные строки окна: строка y канала — src[y * width ..], дополненная на radius
+     * пикселей с каждой стороны. Строки кэшируются в кольце из capacity строк по номеру y
+     * (в том числе за границей), так что любые capacity подряд идущих строк лежат в кольце
+     * одновременно и при движении окна вниз каждая дополняется один раз. Строка за границей
+     * для CONSTANT — общая строка из CONSTANT_VALUE.
+     */
+    final class PaddedRows {
+        private final byte[] src;
+        private final int width;
+        private final int height;
+        private final int radius;
+        private final byte[][] rows;
+        private final int[] slotRow;
+        private final byte[] constantRow;
+
+        PaddedRows(byte[] src, int width, int height, int radius, int capacity) {
+            this.src = src;
+            this.width = width;
+            this.height = height;
+            this.radius = radius;
+            this.rows = new byte[capacity][width + 2 * radius];
+            this.slotRow = new int[capacity];
+            Arrays.fill(slotRow, Integer.MIN_VALUE);
+            this.constantRow = new byte[width + 2 * radius];
+            Arrays.fill(constantRow, (byte) CONSTANT_VALUE);
+        }
+
+        /** Строка y (любая, в том числе за границей); пиксель x канала — элемент x + radius. */
+        byte[] row(int y) {
+            int slot = Math.floorMod(y, rows.length);
+            if (slotRow[slot] != y) {
+                int py = index(y, height);
+                if (py < 0) {
+                    return constantRow;
+                }
+                padRow(src, py * width, width, -radius, width + radius, rows[slot]);
+                slotRow[slot] = y;
+            }
+            return rows[slot];
+        }
+    }
+
+    PaddedRows paddedRows(byte[] src, int width, int height, int radius, int capacity) {
+        return new PaddedRows(src, width, height, radius, capacity);
+    }
+}
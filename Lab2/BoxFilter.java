@@ -0,0 +1,87 @@
+/**
+ * Усредняющий (box) фильтр на скользящих суммах.
+ * Горизонтальные суммы окна обновляются добавлением входящего и вычитанием
+ * уходящего пикселя, вертикальные — добавлением и вычитанием целых строк,
+ * поэтому стоимость на пиксель не зависит от размера ядра.
+ */
+final class BoxFilter {
+
+    private BoxFilter() {
+    }
+
+    /**
+     * Box-фильтр строк [y0, y1) канала с ядром size x size; за границей канал продолжается
+     * по правилу border. rounded — среднее округляется до ближайшего, как в целочисленной
+     * свёртке Convolution.directFixed; иначе дробная часть отбрасывается, как в Convolution.direct.
+     */
+    static void apply(byte[] src, byte[] dst, int width, int height, int size, BorderMode border,
+                      int y0, int y1, boolean rounded) {
+        int radius = size / 2;
+        int area = size * size;
+        int bias = rounded ? area / 2 : 0;
+
+        // Суммы по вертикальному окну для каждого столбца
+        int[] columnSums = new int[width];
+        int[] rowSums = new int[width];
+
+        for (int ky = -radius; ky <= radius; ky++) {
+            addRow(src, width, border.index(y0 + ky, height), radius, border, rowSums, columnSums, 1);
+        }
+
+        for (int y = y0; y < y1; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = (byte) ((columnSums[x] + bias) / area);
+            }
+
+            if (y + 1 < y1) {
+                // Сдвигаем окно на строку вниз: строка y - radius уходит, y + 1 + radius приходит
+                int outgoing = border.index(y - radius, height);
+                int incoming = border.index(y + 1 + radius, height);
+                if (outgoing != incoming) {
+                    addRow(src, width, outgoing, radius, border, rowSums, columnSums, -1);
+                    addRow(src, width, incoming, radius, border, rowSums, columnSums, 1);
+                }
+            }
+        }
+    }
+
+    /** Прибавляет (sign = 1) или вычитает горизонтальные суммы строки row; row < 0 — строка из нулей. */
+    private static void addRow(byte[] src, int width, int row, int radius, BorderMode border,
+                               int[] rowSums, int[] columnSums, int sign) {
+        if (row < 0) {
+            return;
+        }
+        horizontalSums(src, row * width, width, radius, border, rowSums);
+        for (int x = 0; x < width; x++) {
+            columnSums[x] += sign * rowSums[x];
+        }
+    }
+
+    /**
+     * Суммы окон 2 * radius + 1 строки src[offset .. offset + width). Пока окно целиком
+     * внутри строки, сумма сдвигается без проверок границ; у краёв — по правилу border.
+     */
+    static void horizontalSums(byte[] src, int offset, int width, int radius, BorderMode border, int[] out) {
+        int sum = 0;
+        for (int kx = -radius; kx <= radius; kx++) {
+            sum += border.value(src, offset, kx, width);
+        }
+
+        // На шаге x -> x + 1 приходит пиксель x + 1 + radius и уходит x - radius
+        int inner0 = Math.min(radius, width);
+        int inner1 = Math.max(inner0, width - 1 - radius);
+        for (int x = 0; x < inner0; x++) {
+            out[x] = sum;
+            sum += border.value(src, offset, x + 1 + radius, width) - border.value(src, offset, x - radius, width);
+        }
+        for (int x = inner0; x < inner1; x++) {
+            out[x] = sum;
+            sum += (src[offset + x + 1 + radius] & 0xFF) - (src[offset + x - radius] & 0xFF);
+        }
+        for (int x = inner1; x < width; x++) {
+            out[x] = sum;
+            sum += border.value(src, offset, x + 1 + radius, width) - border.value(src, offset, x - radius, width);
+        }
+    }
+}
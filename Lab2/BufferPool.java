@@ -0,0 +1,224 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Общий пул полноразмерных буферов: планарных PixelBuffer, изображений BufferedImage
+ * канонических типов и массивов int/float — промежуточных данных фильтров (ключи векторной
+ * морфологии, проход рекурсивного Гаусса, рабочие строки полос морфологии). Обработка
+ * одного кадра занимает несколько буферов размером с изображение; при предпросмотре
+ * и в пакетном режиме размеры повторяются, поэтому буферы берутся из пула и возвращаются
+ * в него, а не создаются заново для каждого кадра.
+ *
+ * Свободные буферы хранятся по ключу (вид, ширина, высота, каналы или тип изображения;
+ * у массивов — длина).
+ * Объём свободных буферов ограничен capacity байтами: при переполнении вытесняются буферы
+ * ключей, которые дольше всего не запрашивались (LRU). Выданный буфер не очищается —
+ * фильтры перезаписывают все пиксели результата. Доступ синхронизирован.
+ *
+ * Буфер возвращается в пул только после успешной обработки: при отмене полосы,
+ * уже начатые другими потоками, могут ещё писать в него, поэтому он остаётся сборщику мусора.
+ */
+final class BufferPool {
+
+    // Четверть кучи: пул не должен вытеснять сами изображения
+    private static final long DEFAULT_CAPACITY = Runtime.getRuntime().maxMemory() / 4;
+
+    // Виды буферов
+    private static final int PLANES = 0;
+    private static final int IMAGE = 1;
+    private static final int INTS = 2;
+    private static final int FLOATS = 3;
+
+    private static final class Key {
+        final int kind;
+        // У массивов width — длина, height — 1
+        final int width;
+        final int height;
+        // Число каналов PixelBuffer или тип BufferedImage
+        final int format;
+
+        Key(int kind, int width, int height, int format) {
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return kind == key.kind && width == key.width && height == key.height && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, width, height, format);
+        }
+    }
+
+    private static final Map<Key, ArrayDeque<Object>> FREE = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Состояние ниже защищено блокировкой FREE
+    private static long capacity = DEFAULT_CAPACITY;
+    private static long pooledBytes;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    private BufferPool() {
+    }
+
+    /** Буфер распакованного изображения; изображение неканонического формата сначала приводится. */
+    static PixelBuffer fromImage(BufferedImage image) {
+        BufferedImage readable = PixelBuffer.readable(image);
+        PixelBuffer buffer = borrow(readable.getWidth(), readable.getHeight(), PixelBuffer.channelsOf(readable));
+        buffer.readFrom(readable);
+        return buffer;
+    }
+
+    static PixelBuffer borrow(int width, int height, int channels) {
+        Object buffer = take(new Key(PLANES, width, height, channels));
+        return buffer != null ? (PixelBuffer) buffer : new PixelBuffer(width, height, channels);
+    }
+
+    /** Буфер того же размера и с тем же числом каналов, что и buffer. */
+    static PixelBuffer borrowCompatible(PixelBuffer buffer) {
+        return borrow(buffer.width, buffer.height, buffer.channels());
+    }
+
+    static BufferedImage borrowImage(int width, int height, int type) {
+        Object image = take(new Key(IMAGE, width, height, type));
+        return image != null ? (BufferedImage) image : new BufferedImage(width, height, type);
+    }
+
+    /** Возвращает буферы в пул; после этого их нельзя использовать. */
+    static void release(PixelBuffer... buffers) {
+        for (PixelBuffer buffer : buffers) {
+            put(new Key(PLANES, buffer.width, buffer.height, buffer.channels()), buffer);
+        }
+    }
+
+    /** Возвращает изображение, полученное borrowImage; после этого его нельзя использовать. */
+    static void releaseImage(BufferedImage image) {
+        put(new Key(IMAGE, image.getWidth(), image.getHeight(), image.getType()), image);
+    }
+
+    /** Массив int длины length; содержимое не очищено. */
+    static int[] borrowInts(int length) {
+        Object array = take(new Key(INTS, length, 1, 0));
+        return array != null ? (int[]) array : new int[length];
+    }
+
+    static void releaseInts(int[]... arrays) {
+        for (int[] array : arrays) {
+            put(new Key(INTS, array.length, 1, 0), array);
+        }
+    }
+
+    /** Массив float длины length; содержимое не очищено. */
+    static float[] borrowFloats(int length) {
+        Object array = take(new Key(FLOATS, length, 1, 0));
+        return array != null ? (float[]) array : new float[length];
+    }
+
+    static void releaseFloats(float[]... arrays) {
+        for (float[] array : arrays) {
+            put(new Key(FLOATS, array.length, 1, 0), array);
+        }
+    }
+
+    static void setCapacity(long bytes) {
+        synchronized (FREE) {
+            capacity = Math.max(0, bytes);
+            trim();
+        }
+    }
+
+    static long hits() {
+        synchronized (FREE) {
+            return hits;
+        }
+    }
+
+    static long misses() {
+        synchronized (FREE) {
+            return misses;
+        }
+    }
+
+    static long evictions() {
+        synchronized (FREE) {
+            return evictions;
+        }
+    }
+
+    /** Объём свободных буферов в пуле, байт. */
+    static long pooledBytes() {
+        synchronized (FREE) {
+            return pooledBytes;
+        }
+    }
+
+    private static Object take(Key key) {
+        synchronized (FREE) {
+            ArrayDeque<Object> free = FREE.get(key);
+            if (free == null || free.isEmpty()) {
+                misses++;
+                return null;
+            }
+            hits++;
+            Object buffer = free.pop();
+            pooledBytes -= sizeOf(key);
+            return buffer;
+        }
+    }
+
+    private static void put(Key key, Object buffer) {
+        long bytes = sizeOf(key);
+        synchronized (FREE) {
+            if (bytes > capacity) {
+                evictions++;
+                return;
+            }
+            FREE.computeIfAbsent(key, k -> new ArrayDeque<>()).push(buffer);
+            pooledBytes += bytes;
+            trim();
+        }
+    }
+
+    /** Вытесняет буферы давно не запрашивавшихся размеров, пока объём не станет не больше capacity. */
+    private static void trim() {
+        Iterator<Map.Entry<Key, ArrayDeque<Object>>> entries = FREE.entrySet().iterator();
+        while (pooledBytes > capacity && entries.hasNext()) {
+            Map.Entry<Key, ArrayDeque<Object>> entry = entries.next();
+            ArrayDeque<Object> free = entry.getValue();
+            while (pooledBytes > capacity && !free.isEmpty()) {
+                free.pop();
+                pooledBytes -= sizeOf(entry.getKey());
+                evictions++;
+            }
+            if (free.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static long sizeOf(Key key) {
+        long pixels = (long) key.width * key.height;
+        if (key.kind == INTS || key.kind == FLOATS) {
+            return 4 * pixels;
+        }
+        if (key.kind == PLANES) {
+            return pixels * key.format;
+        }
+        return key.format == BufferedImage.TYPE_BYTE_GRAY ? pixels
+                : key.format == BufferedImage.TYPE_3BYTE_BGR ? 3 * pixels : 4 * pixels;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Векторная морфология цветного изображения с упорядочением по яркости. Поканальные минимум
+ * и максимум собирают результат из разных пикселей и дают цвета, которых в изображении нет;
+ * здесь каждый пиксель упаковывается в один ключ int — яркость в старшем байте, за ней R, G, B, —
+ * и эрозия выбирает самый тёмный пиксель под элементом целиком (при равной яркости — по R, G, B),
+ * дилатация — самый светлый. Все три канала сравниваются одним сравнением ключей.
+ *
+ * Ключ хранится с инвертированным знаковым битом (key ^ Integer.MIN_VALUE), чтобы порядок
+ * без знака совпадал с обычным сравнением int. Минимум и максимум считает общее ядро
+ * Morphology.decomposedExtremum — то же, что и для байтовых каналов.
+ */
+final class ColorMorphology {
+
+    // Ключ чёрного пикселя — значение за границей для BorderMode.CONSTANT
+    private static final int CONSTANT_KEY = key(BorderMode.CONSTANT_VALUE, BorderMode.CONSTANT_VALUE,
+            BorderMode.CONSTANT_VALUE);
+
+    private ColorMorphology() {
+    }
+
+    /** Ключи строк [y0, y1) трёхканального буфера. */
+    static void toKeys(PixelBuffer src, int[] keys, int y0, int y1) {
+        byte[] red = src.planes[0], green = src.planes[1], blue = src.planes[2];
+        for (int i = y0 * src.width; i < y1 * src.width; i++) {
+            keys[i] = key(red[i] & 0xFF, green[i] & 0xFF, blue[i] & 0xFF);
+        }
+    }
+
+    /** Обратно в каналы: строки [y0, y1). */
+    static void fromKeys(int[] keys, PixelBuffer dst, int y0, int y1) {
+        byte[] red = dst.planes[0], green = dst.planes[1], blue = dst.planes[2];
+        for (int i = y0 * dst.width; i < y1 * dst.width; i++) {
+            int key = keys[i];
+            red[i] = (byte) (key >> 16);
+            green[i] = (byte) (key >> 8);
+            blue[i] = (byte) key;
+        }
+    }
+
+    /** Эрозия строк [y0, y1) по элементу, разложенному Morphology.decompose. */
+    static void erode(int[] src, int[] dst, int width, int height, int[][] rectangles, BorderMode border,
+                      int y0, int y1) {
+        apply(src, dst, width, height, rectangles, true, border, y0, y1);
+    }
+
+    /** Дилатация строк [y0, y1) по элементу, разложенному Morphology.decompose. */
+    static void dilate(int[] src, int[] dst, int width, int height, int[][] rectangles, BorderMode border,
+                       int y0, int y1) {
+        apply(src, dst, width, height, rectangles, false, border, y0, y1);
+    }
+
+    /** Яркость (веса BT.601 в 1/256) и цвет в одном ключе. */
+    private static int key(int red, int green, int blue) {
+        int luma = (77 * red + 150 * green + 29 * blue + 128) >> 8;
+        return ((luma << 24) | (red << 16) | (green << 8) | blue) ^ Integer.MIN_VALUE;
+    }
+
+    private static void apply(int[] src, int[] dst, int width, int height, int[][] rectangles,
+                              boolean minimum, BorderMode border, int y0, int y1) {
+        Morphology.decomposedExtremum((y, row) -> System.arraycopy(src, y * width, row, 0, width),
+                width, height, rectangles, minimum, border, CONSTANT_KEY, y0, y1, dst, y0 * width);
+    }
+}
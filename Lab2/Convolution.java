@@ -0,0 +1,429 @@
+import java.util.Arrays;
+
+/**
+ * Свёртка одного канала изображения (плоскости PixelBuffer).
+ * Сепарабельное ядро вида k[y][x] = v[y] * v[x] применяется двумя одномерными проходами:
+ * горизонтальным (в промежуточный буфер) и вертикальным, что даёт 2k операций
+ * на пиксель вместо k^2.
+ */
+final class Convolution {
+
+    private Convolution() {
+    }
+
+    private static VectorBackend loadVectorBackend() {
+        try {
+            Class<?> type = Class.forName("VectorConvolution");
+            return (VectorBackend) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException ex) {
+            // Класс не собран или JVM запущена без --add-modules jdk.incubator.vector
+            return null;
+        }
+    }
+
+    static boolean isVectorAvailable() {
+        return VECTOR_BACKEND != null;
+    }
+
+    /** Описание векторного пути (ширина регистров) или null, если он недоступен. */
+    static String vectorDescription() {
+        return VECTOR_BACKEND == null ? null : VECTOR_BACKEND.description();
+    }
+
+    static boolean isVectorEnabled() {
+        return vector != null;
+    }
+
+    /** Включает векторный путь, если он доступен; выключенный — все свёртки скалярные. */
+    static void setVectorEnabled(boolean enabled) {
+        vector = enabled ? VECTOR_BACKEND : null;
+    }
+
+    // Число дробных бит весов ядра в целочисленной (фиксированной точке) форме
+    static final int FIXED_POINT_BITS = 16;
+
+    /**
+     * Векторная реализация свёртки. Единственная реализация, VectorConvolution, требует модуля
+     * jdk.incubator.vector и загружается по имени, так что без него программа собирается
+     * и работает на скалярном пути.
+     */
+    interface VectorBackend {
+        String description();
+
+        void direct(byte[] src, byte[] dst, int width, int height, double[][] kernel, BorderMode border,
+                    int y0, int y1);
+
+        void separable(byte[] src, byte[] dst, int width, int height, double[] kernel, BorderMode border,
+                       int y0, int y1);
+
+        void horizontalPass(byte[] src, int offset, int width, double[] kernel, BorderMode border, double[] out);
+    }
+
+    private static final VectorBackend VECTOR_BACKEND = loadVectorBackend();
+
+    // Текущий векторный путь или null для скалярного
+    private static volatile VectorBackend vector = VECTOR_BACKEND;
+
+    /**
+     * Одномерное гауссовское ядро. Внешнее произведение этого ядра на себя
+     * совпадает с нормированным двумерным ядром createGaussianKernel2D.
+     */
+    static double[] createGaussianKernel1D(int size, double sigma) {
+        double[] kernel = new double[size];
+        double sum = 0;
+        int center = size / 2;
+
+        for (int x = -center; x <= center; x++) {
+            double value = Math.exp(-(x * x) / (2 * sigma * sigma));
+            kernel[x + center] = value;
+            sum += value;
+        }
+
+        for (int i = 0; i < size; i++) {
+            kernel[i] /= sum;
+        }
+
+        return kernel;
+    }
+
+    static double[][] createGaussianKernel2D(int size, double sigma) {
+        double[][] kernel = new double[size][size];
+        double sum = 0;
+        int center = size / 2;
+
+        for (int x = -center; x <= center; x++) {
+            for (int y = -center; y <= center; y++) {
+                double value = (1.0 / (2 * Math.PI * sigma * sigma)) *
+                        Math.exp(-(x * x + y * y) / (2 * sigma * sigma));
+                kernel[x + center][y + center] = value;
+                sum += value;
+            }
+        }
+
+        // Нормализация
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                kernel[i][j] /= sum;
+            }
+        }
+
+        return kernel;
+    }
+
+    /** Усредняющее ядро size x size с равными весами. */
+    static double[][] createBoxKernel(int size) {
+        double[][] kernel = new double[size][size];
+        double value = 1.0 / (size * size);
+
+        for (double[] row : kernel) {
+            Arrays.fill(row, value);
+        }
+
+        return kernel;
+    }
+
+    /**
+     * Веса ядра в фиксированной точке с FIXED_POINT_BITS дробными битами. Сумма остаётся ровно
+     * 1 << FIXED_POINT_BITS, чтобы однородная область не меняла яркость: веса округляются вниз,
+     * а недостающие единицы получают веса с наибольшей отброшенной дробной частью, так что
+     * каждый вес отличается от точного меньше чем на единицу младшего разряда.
+     */
+    static int[] toFixedPoint(double[] kernel) {
+        return quantize(kernel, kernel.length);
+    }
+
+    static int[][] toFixedPoint(double[][] kernel) {
+        int size = kernel.length;
+        double[] flat = new double[size * size];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(kernel[i], 0, flat, i * size, size);
+        }
+
+        int[] quantized = quantize(flat, size);
+        int[][] fixed = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(quantized, i * size, fixed[i], 0, size);
+        }
+        return fixed;
+    }
+
+    /** weights — ядро по строкам длины rowLength; двумерное ядро передаётся развёрнутым. */
+    private static int[] quantize(double[] weights, int rowLength) {
+        int[] fixed = new int[weights.length];
+        double[] remainders = new double[weights.length];
+        int sum = 0;
+
+        for (int i = 0; i < weights.length; i++) {
+            double scaled = weights[i] * (1 << FIXED_POINT_BITS);
+            fixed[i] = (int) Math.floor(scaled);
+            remainders[i] = scaled - fixed[i];
+            sum += fixed[i];
+        }
+
+        // Равные остатки (у симметричных и равных весов) упорядочены по расстоянию до центра:
+        // добавки ложатся кольцами вокруг него, и ядро не перекашивается в сторону первых строк.
+        // Внутри кольца — по индексу, чтобы результат был детерминирован
+        int rows = weights.length / rowLength;
+        int[] distance = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            int dx = 2 * (i % rowLength) - (rowLength - 1);
+            int dy = 2 * (i / rowLength) - (rows - 1);
+            distance[i] = dx * dx + dy * dy;
+        }
+        Integer[] order = new Integer[weights.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int byRemainder = Double.compare(remainders[b], remainders[a]);
+            return byRemainder != 0 ? byRemainder : Integer.compare(distance[a], distance[b]);
+        });
+        for (int i = 0; sum < (1 << FIXED_POINT_BITS); i = (i + 1) % order.length) {
+            fixed[order[i]]++;
+            sum++;
+        }
+
+        return fixed;
+    }
+
+    /**
+     * Прямая двумерная свёртка строк [y0, y1) канала: k^2 операций на пиксель.
+     * За границей канал продолжается по правилу border. Строки окна дополняются по краям
+     * один раз, поэтому во внутреннем цикле по пикселям нет проверок границ.
+     */
+    static void direct(byte[] src, byte[] dst, int width, int height, double[][] kernel, BorderMode border,
+                       int y0, int y1) {
+        VectorBackend backend = vector;
+        if (backend != null) {
+            backend.direct(src, dst, width, height, kernel, border, y0, y1);
+            return;
+        }
+
+        int size = kernel.length;
+        int radius = size / 2;
+        BorderMode.PaddedRows rows = border.paddedRows(src, width, height, radius, size);
+        double[] acc = new double[width];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+
+            // Порядок сложений для каждого пикселя — по строкам, затем по столбцам ядра
+            for (int ky = -radius; ky <= radius; ky++) {
+                byte[] row = rows.row(y + ky);
+                double[] weights = kernel[ky + radius];
+                for (int kx = 0; kx < size; kx++) {
+                    double weight = weights[kx];
+                    for (int x = 0; x < width; x++) {
+                        acc[x] += (row[x + kx] & 0xFF) * weight;
+                    }
+                }
+            }
+
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = (byte) Math.min(Math.max((int) acc[x], 0), 255);
+            }
+        }
+    }
+
+    /**
+     * Сепарабельная свёртка строк [y0, y1) канала.
+     * Результаты горизонтального прохода хранятся в кольцевом буфере из kernel.length строк,
+     * поэтому промежуточная память не зависит от высоты изображения.
+     * Граница — по правилу border, как в direct.
+     */
+    static void separable(byte[] src, byte[] dst, int width, int height, double[] kernel, BorderMode border,
+                          int y0, int y1) {
+        VectorBackend backend = vector;
+        if (backend != null) {
+            backend.separable(src, dst, width, height, kernel, border, y0, y1);
+            return;
+        }
+
+        int size = kernel.length;
+        int radius = size / 2;
+
+        // Кольцевой буфер строк после горизонтального прохода
+        double[][] rows = new double[size][width];
+        int[] slotRow = new int[size];
+        Arrays.fill(slotRow, -1);
+        double[] acc = new double[width];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+
+            for (int ky = -radius; ky <= radius; ky++) {
+                int py = border.index(y + ky, height);
+                if (py < 0) {
+                    // Строка из нулей (CONSTANT) ничего не добавляет
+                    continue;
+                }
+                int slot = py % size;
+                if (slotRow[slot] != py) {
+                    horizontalPass(src, py * width, width, kernel, border, rows[slot]);
+                    slotRow[slot] = py;
+                }
+
+                double weight = kernel[ky + radius];
+                double[] row = rows[slot];
+                for (int x = 0; x < width; x++) {
+                    acc[x] += row[x] * weight;
+                }
+            }
+
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = (byte) Math.min(Math.max((int) acc[x], 0), 255);
+            }
+        }
+    }
+
+    /**
+     * Горизонтальная свёртка строки src[offset .. offset + width). Внутренние пиксели
+     * (ядро целиком в строке) считаются без проверок, крайние radius с каждой стороны — по border.
+     */
+    static void horizontalPass(byte[] src, int offset, int width, double[] kernel, BorderMode border, double[] out) {
+        VectorBackend backend = vector;
+        if (backend != null) {
+            backend.horizontalPass(src, offset, width, kernel, border, out);
+            return;
+        }
+
+        int radius = kernel.length / 2;
+        int left = Math.min(radius, width);
+        int right = Math.max(left, width - radius);
+
+        for (int x = 0; x < left; x++) {
+            out[x] = borderSum(src, offset, width, kernel, border, x);
+        }
+        for (int x = left; x < right; x++) {
+            double sum = 0;
+            int start = offset + x - radius;
+            for (int k = 0; k < kernel.length; k++) {
+                sum += (src[start + k] & 0xFF) * kernel[k];
+            }
+            out[x] = sum;
+        }
+        for (int x = right; x < width; x++) {
+            out[x] = borderSum(src, offset, width, kernel, border, x);
+        }
+    }
+
+    private static double borderSum(byte[] src, int offset, int width, double[] kernel, BorderMode border, int x) {
+        int radius = kernel.length / 2;
+        double sum = 0;
+        for (int kx = -radius; kx <= radius; kx++) {
+            sum += border.value(src, offset, x + kx, width) * kernel[kx + radius];
+        }
+        return sum;
+    }
+
+    /**
+     * Прямая свёртка с весами в фиксированной точке (toFixedPoint): сумма накапливается в int
+     * и округляется до ближайшего, а не отбрасывает дробную часть, как direct. Целочисленная
+     * арифметика даёт одинаковый результат на любой JVM и с любым числом потоков.
+     */
+    static void directFixed(byte[] src, byte[] dst, int width, int height, int[][] kernel, BorderMode border,
+                            int y0, int y1) {
+        int size = kernel.length;
+        int radius = size / 2;
+        int half = 1 << (FIXED_POINT_BITS - 1);
+        BorderMode.PaddedRows rows = border.paddedRows(src, width, height, radius, size);
+        // Веса в сумме 1 << FIXED_POINT_BITS: не больше 255 << 16 при неотрицательных весах
+        int[] acc = new int[width];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, half);
+
+            for (int ky = -radius; ky <= radius; ky++) {
+                byte[] row = rows.row(y + ky);
+                int[] weights = kernel[ky + radius];
+                for (int kx = 0; kx < size; kx++) {
+                    int weight = weights[kx];
+                    for (int x = 0; x < width; x++) {
+                        acc[x] += (row[x + kx] & 0xFF) * weight;
+                    }
+                }
+            }
+
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = (byte) Math.min(Math.max(acc[x] >> FIXED_POINT_BITS, 0), 255);
+            }
+        }
+    }
+
+    /**
+     * Сепарабельная свёртка в фиксированной точке. Горизонтальный проход сохраняет сумму
+     * без округления (2 * FIXED_POINT_BITS дробных бит после вертикального), поэтому
+     * результат округляется один раз; вертикальная сумма накапливается в long.
+     */
+    static void separableFixed(byte[] src, byte[] dst, int width, int height, int[] kernel, BorderMode border,
+                               int y0, int y1) {
+        int size = kernel.length;
+        int radius = size / 2;
+        long half = 1L << (2 * FIXED_POINT_BITS - 1);
+
+        int[][] rows = new int[size][width];
+        int[] slotRow = new int[size];
+        Arrays.fill(slotRow, -1);
+        long[] acc = new long[width];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, half);
+
+            for (int ky = -radius; ky <= radius; ky++) {
+                int py = border.index(y + ky, height);
+                if (py < 0) {
+                    continue;
+                }
+                int slot = py % size;
+                if (slotRow[slot] != py) {
+                    horizontalPassFixed(src, py * width, width, kernel, border, rows[slot]);
+                    slotRow[slot] = py;
+                }
+
+                long weight = kernel[ky + radius];
+                int[] row = rows[slot];
+                for (int x = 0; x < width; x++) {
+                    acc[x] += row[x] * weight;
+                }
+            }
+
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = (byte) Math.min(Math.max(acc[x] >> (2 * FIXED_POINT_BITS), 0), 255);
+            }
+        }
+    }
+
+    static void horizontalPassFixed(byte[] src, int offset, int width, int[] kernel, BorderMode border, int[] out) {
+        int radius = kernel.length / 2;
+        int left = Math.min(radius, width);
+        int right = Math.max(left, width - radius);
+
+        for (int x = 0; x < left; x++) {
+            out[x] = borderSumFixed(src, offset, width, kernel, border, x);
+        }
+        for (int x = left; x < right; x++) {
+            int sum = 0;
+            int start = offset + x - radius;
+            for (int k = 0; k < kernel.length; k++) {
+                sum += (src[start + k] & 0xFF) * kernel[k];
+            }
+            out[x] = sum;
+        }
+        for (int x = right; x < width; x++) {
+            out[x] = borderSumFixed(src, offset, width, kernel, border, x);
+        }
+    }
+
+    private static int borderSumFixed(byte[] src, int offset, int width, int[] kernel, BorderMode border, int x) {
+        int radius = kernel.length / 2;
+        int sum = 0;
+        for (int kx = -radius; kx <= radius; kx++) {
+            sum += border.value(src, offset, x + kx, width) * kernel[kx + radius];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,254 @@
+import java.util.Arrays;
+
+/**
+ * Свёртка через быстрое преобразование Фурье для больших ядер.
+ * Изображение делится на квадратные плитки; плитка вместе с ореолом в radius пикселей
+ * (за краем изображения — по правилу BorderMode, как в Convolution.direct)
+ * дополняется нулями до N x N, N — степень двойки, умножается в частотной области на
+ * спектр ядра, и из результата берутся пиксели, не задетые циклическим переносом
+ * (overlap-save). Плитки независимы, поэтому полосы строк обрабатываются параллельно.
+ * Ядро вещественное, поэтому две плитки считаются одним комплексным преобразованием:
+ * одна в действительной части, другая — в мнимой.
+ *
+ * Стоимость на пиксель ~ log N и почти не зависит от размера ядра. Результат отличается
+ * от прямой свёртки только ошибкой округления double (до одного уровня яркости после
+ * отбрасывания дробной части).
+ */
+final class FftConvolution {
+
+    // Размеры ядра, начиная с которых БПФ быстрее (замерено на 2000 x 1500, один поток):
+    // для сепарабельной свёртки (2k умножений на пиксель) и для прямой двумерной (k^2).
+    // Векторная свёртка быстрее в несколько раз: прямая уступает БПФ позже, а сепарабельная
+    // на ядрах до 151 не уступает вовсе
+    private static final int SEPARABLE_THRESHOLD = 25;
+    private static final int DIRECT_THRESHOLD = 5;
+    private static final int VECTOR_SEPARABLE_THRESHOLD = Integer.MAX_VALUE;
+    private static final int VECTOR_DIRECT_THRESHOLD = 27;
+
+    private static final int MIN_SIZE = 32;
+    private static final int MAX_SIZE = 1024;
+    // Плитка 256 x 256 (два массива по 512 КБ) ещё помещается в кэш второго уровня,
+    // большие преобразования заметно медленнее, чем следует из N^2 log N
+    private static final int CACHE_FRIENDLY_SIZE = 256;
+    private static final double LARGE_SIZE_PENALTY = 1.5;
+
+    private final int size;
+    private final int log2;
+    private final int radius;
+    private final int tile;
+    // Сопряжённый спектр ядра: свёртка здесь — корреляция, как в Convolution.direct
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+
+    /** Готовит спектр ядра; объект неизменяем и используется полосами одновременно. */
+    FftConvolution(double[][] kernel) {
+        int k = kernel.length;
+        this.radius = k / 2;
+        this.size = chooseSize(k);
+        this.log2 = Integer.numberOfTrailingZeros(size);
+        this.tile = size - 2 * radius;
+
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        reversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - log2);
+        }
+
+        kernelRe = new double[size * size];
+        kernelIm = new double[size * size];
+        for (int y = 0; y < k; y++) {
+            for (int x = 0; x < k; x++) {
+                kernelRe[y * size + x] = kernel[y][x];
+            }
+        }
+        forward(kernelRe, kernelIm, k, new double[size], new double[size]);
+        double scale = 1.0 / ((double) size * size);
+        for (int i = 0; i < kernelRe.length; i++) {
+            kernelRe[i] *= scale;
+            kernelIm[i] *= -scale;
+        }
+    }
+
+    /** Выгоднее ли БПФ, чем сепарабельная (separable) или прямая двумерная свёртка. */
+    static boolean isPreferred(int kernelSize, boolean separable) {
+        int threshold = Convolution.isVectorEnabled()
+                ? (separable ? VECTOR_SEPARABLE_THRESHOLD : VECTOR_DIRECT_THRESHOLD)
+                : (separable ? SEPARABLE_THRESHOLD : DIRECT_THRESHOLD);
+        return kernelSize >= threshold;
+    }
+
+    /** Высота плитки: полосы ниже неё тратят преобразование N x N на меньшее число строк. */
+    int tileRows() {
+        return tile;
+    }
+
+    /**
+     * Размер преобразования с наименьшей стоимостью на полезный пиксель:
+     * N^2 log N операций дают (N - k + 1)^2 пикселей результата.
+     */
+    private static int chooseSize(int k) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n *= 2) {
+            int useful = n - k + 1;
+            if (useful <= 0) {
+                continue;
+            }
+            double cost = (double) n * n * Integer.numberOfTrailingZeros(n) / ((double) useful * useful);
+            if (n > CACHE_FRIENDLY_SIZE) {
+                cost *= LARGE_SIZE_PENALTY;
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = n;
+            }
+        }
+        if (best == 0) {
+            throw new IllegalArgumentException("Слишком большое ядро для БПФ: " + k);
+        }
+        return best;
+    }
+
+    /** Свёртка строк [y0, y1) канала. */
+    void apply(byte[] src, byte[] dst, int width, int height, BorderMode border, int y0, int y1) {
+        double[] re = new double[size * size];
+        double[] im = new double[size * size];
+        byte[] line = new byte[size];
+        double[] columnRe = new double[size];
+        double[] columnIm = new double[size];
+
+        for (int ty = y0; ty < y1; ty += tile) {
+            int rows = Math.min(tile, y1 - ty);
+            // Плитки строки по две: первая в действительной части, вторая в мнимой
+            for (int tx = 0; tx < width; tx += 2 * tile) {
+                int second = tx + tile;
+                Arrays.fill(im, 0);
+                loadBlock(src, width, height, border, tx, ty, rows, re, line);
+                if (second < width) {
+                    loadBlock(src, width, height, border, second, ty, rows, im, line);
+                }
+
+                forward(re, im, rows + 2 * radius, columnRe, columnIm);
+                for (int i = 0; i < re.length; i++) {
+                    double a = re[i], b = im[i];
+                    re[i] = a * kernelRe[i] - b * kernelIm[i];
+                    im[i] = a * kernelIm[i] + b * kernelRe[i];
+                }
+                inverse(re, im, rows, columnRe, columnIm);
+
+                storeBlock(re, dst, width, tx, ty, rows);
+                if (second < width) {
+                    storeBlock(im, dst, width, second, ty, rows);
+                }
+            }
+        }
+    }
+
+    /** Плитка с ореолом, начиная с (tx - radius, ty - radius), остальное — нули. */
+    private void loadBlock(byte[] src, int width, int height, BorderMode border, int tx, int ty, int rows,
+                           double[] block, byte[] line) {
+        Arrays.fill(block, 0);
+        int blockHeight = rows + 2 * radius;
+        int blockWidth = Math.min(tile, width - tx) + 2 * radius;
+
+        for (int by = 0; by < blockHeight; by++) {
+            int row = border.index(ty - radius + by, height);
+            int out = by * size;
+            if (row < 0) {
+                Arrays.fill(block, out, out + blockWidth, BorderMode.CONSTANT_VALUE);
+                continue;
+            }
+            border.padRow(src, row * width, width, tx - radius, tx - radius + blockWidth, line);
+            for (int bx = 0; bx < blockWidth; bx++) {
+                block[out + bx] = line[bx] & 0xFF;
+            }
+        }
+    }
+
+    private void storeBlock(double[] block, byte[] dst, int width, int tx, int ty, int rows) {
+        int columns = Math.min(tile, width - tx);
+
+        for (int y = 0; y < rows; y++) {
+            int in = y * size;
+            int out = (ty + y) * width + tx;
+            for (int x = 0; x < columns; x++) {
+                dst[out + x] = (byte) Math.min(Math.max((int) block[in + x], 0), 255);
+            }
+        }
+    }
+
+    /**
+     * Прямое двумерное БПФ N x N. Строки с номера rows нулевые, их преобразование — тоже нули,
+     * поэтому по строкам преобразуются только первые rows, затем все столбцы.
+     */
+    private void forward(double[] re, double[] im, int rows, double[] columnRe, double[] columnIm) {
+        for (int y = 0; y < rows; y++) {
+            fft(re, im, y * size, false);
+        }
+        columns(re, im, false, columnRe, columnIm);
+    }
+
+    /** Обратное БПФ: сначала столбцы, затем только первые rows строк, которые нужны результату. */
+    private void inverse(double[] re, double[] im, int rows, double[] columnRe, double[] columnIm) {
+        columns(re, im, true, columnRe, columnIm);
+        for (int y = 0; y < rows; y++) {
+            fft(re, im, y * size, true);
+        }
+    }
+
+    private void columns(double[] re, double[] im, boolean inverse, double[] columnRe, double[] columnIm) {
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                columnRe[y] = re[y * size + x];
+                columnIm[y] = im[y * size + x];
+            }
+            fft(columnRe, columnIm, 0, inverse);
+            for (int y = 0; y < size; y++) {
+                re[y * size + x] = columnRe[y];
+                im[y * size + x] = columnIm[y];
+            }
+        }
+    }
+
+    /** Одномерное БПФ длины N по основанию 2 на месте, начиная с offset; без нормировки. */
+    private void fft(double[] re, double[] im, int offset, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = t;
+                t = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = t;
+            }
+        }
+
+        double sign = inverse ? 1 : -1;
+        for (int half = 1, step = size / 2; half < size; half *= 2, step /= 2) {
+            for (int start = 0; start < size; start += 2 * half) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    int a = offset + start + k;
+                    int b = a + half;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
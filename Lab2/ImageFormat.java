@@ -0,0 +1,212 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+
+/**
+ * Приведение изображений к каноническим форматам: TYPE_INT_RGB, TYPE_3BYTE_BGR и TYPE_BYTE_GRAY.
+ * Изображение приводится один раз при загрузке, после этого PixelBuffer распаковывает и
+ * записывает его напрямую через банк данных, а результаты создаются того же типа, что и исходное
+ * (new BufferedImage с TYPE_CUSTOM невозможен).
+ *
+ * Полутоновые изображения любой разрядности и палитры из одних серых цветов становятся
+ * TYPE_BYTE_GRAY, остальные — TYPE_INT_RGB. Образцы с разрядностью до 16 бит, палитры и
+ * упакованные форматы читаются построчно из растра через таблицы пересчёта; getRGB остаётся
+ * только для редких форматов — с предумноженной альфой, вещественными образцами или цветовым
+ * пространством не sRGB (например, JPEG со встроенным профилем ICC). Альфа-канал отбрасывается,
+ * как и раньше при записи результата: цвет пикселя берётся без учёта прозрачности.
+ */
+final class ImageFormat {
+
+    private static final int MAX_SAMPLE_BITS = 16;
+
+    private ImageFormat() {
+    }
+
+    /** Тип, данные которого фильтры читают напрямую: один из трёх канонических, без смещения растра. */
+    static boolean isCanonical(BufferedImage image) {
+        int type = image.getType();
+        Raster raster = image.getRaster();
+        return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_3BYTE_BGR
+                || type == BufferedImage.TYPE_BYTE_GRAY)
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
+
+    /** Станет ли изображение с этой цветовой моделью полутоновым после normalize. */
+    static boolean isGray(ColorModel model) {
+        if (model == null) {
+            return false;
+        }
+        if (model instanceof IndexColorModel) {
+            IndexColorModel palette = (IndexColorModel) model;
+            for (int i = 0; i < palette.getMapSize(); i++) {
+                int red = palette.getRed(i);
+                if (red != palette.getGreen(i) || red != palette.getBlue(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return model.getNumColorComponents() == 1;
+    }
+
+    /** Изображение в каноническом формате; уже каноническое возвращается без копирования. */
+    static BufferedImage normalize(BufferedImage image) {
+        if (isCanonical(image)) {
+            return image;
+        }
+        ColorModel model = image.getColorModel();
+        boolean gray = isGray(model);
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(),
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+
+        if (model instanceof IndexColorModel) {
+            fromPalette(image.getRaster(), (IndexColorModel) model, result);
+        } else if (hasIntegerSamples(image)) {
+            fromSamples(image.getRaster(), result, gray);
+        } else {
+            fromRGB(image, result, gray);
+        }
+        return result;
+    }
+
+    /**
+     * Образцы можно пересчитать в 8 бит без преобразования цвета: целые, не длиннее 16 бит,
+     * без предумножения на альфу, в пространстве sRGB (или полутоновые) с каналами R, G, B по порядку.
+     */
+    private static boolean hasIntegerSamples(BufferedImage image) {
+        ColorModel model = image.getColorModel();
+        if (!(model instanceof ComponentColorModel || model instanceof DirectColorModel)
+                || model.isAlphaPremultiplied()) {
+            return false;
+        }
+        int transfer = image.getRaster().getTransferType();
+        if (transfer != DataBuffer.TYPE_BYTE && transfer != DataBuffer.TYPE_USHORT
+                && transfer != DataBuffer.TYPE_INT) {
+            return false;
+        }
+        int colors = model.getNumColorComponents();
+        if (colors == 3 && !model.getColorSpace().isCS_sRGB()) {
+            return false;
+        }
+        if (colors != 1 && colors != 3) {
+            return false;
+        }
+        for (int b = 0; b < colors; b++) {
+            if (image.getSampleModel().getSampleSize(b) > MAX_SAMPLE_BITS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Образцы каналов R, G, B (или единственного серого) с пересчётом разрядности через таблицы. */
+    private static void fromSamples(Raster raster, BufferedImage result, boolean gray) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int bands = gray ? 1 : 3;
+        byte[][] scale = new byte[bands][];
+        for (int b = 0; b < bands; b++) {
+            scale[b] = scaleTable(raster.getSampleModel().getSampleSize(b));
+        }
+        int[][] rows = new int[bands][width];
+
+        if (gray) {
+            byte[] data = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, rows[0]);
+                int out = y * width;
+                for (int x = 0; x < width; x++) {
+                    data[out + x] = scale[0][rows[0][x]];
+                }
+            }
+            return;
+        }
+
+        int[] data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            for (int b = 0; b < 3; b++) {
+                raster.getSamples(0, y, width, 1, b, rows[b]);
+            }
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                data[out + x] = ((scale[0][rows[0][x]] & 0xFF) << 16)
+                        | ((scale[1][rows[1][x]] & 0xFF) << 8)
+                        | (scale[2][rows[2][x]] & 0xFF);
+            }
+        }
+    }
+
+    /** Таблица v -> round(v * 255 / (2^bits - 1)) для образцов разрядности bits. */
+    private static byte[] scaleTable(int bits) {
+        int max = (1 << bits) - 1;
+        byte[] table = new byte[max + 1];
+        for (int v = 0; v <= max; v++) {
+            table[v] = (byte) ((v * 255L + max / 2) / max);
+        }
+        return table;
+    }
+
+    /** Индексы палитры (в том числе упакованные по 1, 2 и 4 бита) через таблицу цветов. */
+    private static void fromPalette(Raster raster, IndexColorModel palette, BufferedImage result) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        // Индексы за пределами палитры возможны в повреждённых файлах — они дают чёрный цвет
+        int[] colors = new int[Math.max(1 << palette.getPixelSize(), palette.getMapSize())];
+        palette.getRGBs(colors);
+        int[] row = new int[width];
+
+        if (result.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            byte[] data = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                int out = y * width;
+                for (int x = 0; x < width; x++) {
+                    data[out + x] = (byte) colors[row[x]];
+                }
+            }
+            return;
+        }
+
+        int[] data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(0, y, width, 1, 0, row);
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                data[out + x] = colors[row[x]] & 0xFFFFFF;
+            }
+        }
+    }
+
+    /** Общий путь через цветовую модель изображения, по строке за вызов. */
+    private static void fromRGB(BufferedImage image, BufferedImage result, boolean gray) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (gray) {
+            byte[] data = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                int out = y * width;
+                for (int x = 0; x < width; x++) {
+                    data[out + x] = (byte) row[x];
+                }
+            }
+            return;
+        }
+
+        int[] data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, data, y * width, width);
+            for (int x = y * width; x < (y + 1) * width; x++) {
+                data[x] &= 0xFFFFFF;
+            }
+        }
+    }
+}
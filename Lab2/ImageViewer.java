@@ -0,0 +1,489 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Область просмотра изображения с масштабом и прокруткой. Для изображения один раз,
+ * в фоновом потоке, строится пирамида уменьшенных копий (каждый уровень вдвое меньше
+ * предыдущего, среднее по 2 x 2), а рисуются только видимые плитки TILE x TILE уровня,
+ * разрешение которого ближе всего к экранному сверху. Плитки копируются в изображения,
+ * совместимые с экраном, и кэшируются, так что перерисовка при прокрутке и смене
+ * масштаба стоит порядка числа пикселей окна, а не изображения.
+ *
+ * Колесо мыши меняет масштаб вокруг курсора, перетаскивание сдвигает изображение,
+ * двойной щелчок возвращает режим "по размеру окна". Перетаскивание с Shift выделяет
+ * прямоугольную область (внутри выделения — сдвигает её), щелчок с Shift снимает выделение.
+ * Области, связанные общим Viewport, показывают одно и то же место в одном масштабе
+ * и одно выделение.
+ */
+final class ImageViewer extends JComponent {
+
+    private static final int TILE = 256;
+    // Плиток по 256 КБ (TYPE_INT_RGB): около 64 МБ на область просмотра
+    private static final int MAX_CACHED_TILES = 256;
+    private static final double ZOOM_STEP = 1.25;
+    private static final double MAX_ZOOM = 32;
+
+    /**
+     * Общие масштаб и положение для связанных областей в координатах исходного изображения:
+     * zoom — экранных пикселей на пиксель, (centerX, centerY) — точка в центре области.
+     */
+    static final class Viewport {
+        private final List<ImageViewer> viewers = new ArrayList<>();
+        private int width;
+        private int height;
+        private boolean fitted = true;
+        private double zoom = 1;
+        private double centerX;
+        private double centerY;
+        private Rectangle selection;
+        private Consumer<Rectangle> selectionListener;
+
+        /**
+         * Меняет размер изображения; при новом размере масштаб снова подбирается по окну,
+         * а выделение снимается (без уведомления).
+         */
+        private void setSize(int width, int height) {
+            if (width != this.width || height != this.height) {
+                this.width = width;
+                this.height = height;
+                selection = null;
+                fit();
+            }
+        }
+
+        /** Выделенная область в координатах изображения или null. */
+        Rectangle getSelection() {
+            return selection == null ? null : new Rectangle(selection);
+        }
+
+        /** Выделяет область (обрезается по изображению, пустая снимает выделение) и сообщает о ней. */
+        void setSelection(Rectangle region) {
+            Rectangle clipped = region == null ? null : region.intersection(new Rectangle(width, height));
+            selection = clipped == null || clipped.isEmpty() ? null : clipped;
+            repaintAll();
+            if (selectionListener != null) {
+                selectionListener.accept(getSelection());
+            }
+        }
+
+        /** Вызывается при каждом изменении выделения мышью, в том числе во время перетаскивания. */
+        void setSelectionListener(Consumer<Rectangle> listener) {
+            selectionListener = listener;
+        }
+
+        void fit() {
+            fitted = true;
+            centerX = width / 2.0;
+            centerY = height / 2.0;
+            repaintAll();
+        }
+
+        /** Масштаб для области просмотра; в режиме "по размеру окна" он зависит от её размера. */
+        private double zoomFor(Component component) {
+            if (!fitted || width == 0 || height == 0) {
+                return zoom;
+            }
+            double fit = Math.min((double) component.getWidth() / width, (double) component.getHeight() / height);
+            return Math.min(1, fit);
+        }
+
+        private void zoomAt(Component component, double factor, int x, int y) {
+            double current = zoomFor(component);
+            double next = Math.max(minimumZoom(component), Math.min(MAX_ZOOM, current * factor));
+            // Точка изображения под курсором остаётся на месте
+            double dx = x - component.getWidth() / 2.0;
+            double dy = y - component.getHeight() / 2.0;
+            centerX += dx / current - dx / next;
+            centerY += dy / current - dy / next;
+            zoom = next;
+            fitted = false;
+            repaintAll();
+        }
+
+        private void panBy(Component component, int dx, int dy) {
+            double current = zoomFor(component);
+            centerX = Math.max(0, Math.min(width, centerX - dx / current));
+            centerY = Math.max(0, Math.min(height, centerY - dy / current));
+            zoom = current;
+            fitted = false;
+            repaintAll();
+        }
+
+        /** Не меньше, чем нужно, чтобы изображение уместилось в четверть области. */
+        private double minimumZoom(Component component) {
+            double fit = Math.min((double) component.getWidth() / Math.max(1, width),
+                    (double) component.getHeight() / Math.max(1, height));
+            return Math.min(1, fit / 4);
+        }
+
+        private void repaintAll() {
+            for (ImageViewer viewer : viewers) {
+                viewer.repaint();
+            }
+        }
+    }
+
+    private final Viewport viewport;
+    private String placeholder;
+
+    // Поля ниже меняются только в потоке обработки событий
+    private BufferedImage image;
+    private final List<BufferedImage> levels = new ArrayList<>();
+    private SwingWorker<Void, BufferedImage> pyramidWorker;
+    private final Map<Long, Image> tiles = new LinkedHashMap<Long, Image>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Image> eldest) {
+            return size() > MAX_CACHED_TILES;
+        }
+    };
+
+    ImageViewer(Viewport viewport, String placeholder) {
+        this.viewport = viewport;
+        this.placeholder = placeholder;
+        viewport.viewers.add(this);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+
+        MouseAdapter mouse = new MouseAdapter() {
+            private Point last;
+            // Выделение: начальная точка в координатах изображения и сдвигается ли готовая область
+            private Point anchor;
+            private Rectangle moved;
+            private boolean dragged;
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                last = e.getPoint();
+                anchor = null;
+                moved = null;
+                dragged = false;
+                if (image != null && e.isShiftDown()) {
+                    anchor = imagePoint(e.getPoint());
+                    Rectangle selection = viewport.selection;
+                    if (selection != null && selection.contains(anchor)) {
+                        moved = new Rectangle(selection);
+                    }
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                dragged = true;
+                if (image != null && anchor != null) {
+                    Point point = imagePoint(e.getPoint());
+                    if (moved != null) {
+                        // Область сдвигается целиком и не выходит за изображение
+                        int x = Math.max(0, Math.min(viewport.width - moved.width, moved.x + point.x - anchor.x));
+                        int y = Math.max(0, Math.min(viewport.height - moved.height, moved.y + point.y - anchor.y));
+                        viewport.setSelection(new Rectangle(x, y, moved.width, moved.height));
+                    } else {
+                        viewport.setSelection(new Rectangle(Math.min(anchor.x, point.x), Math.min(anchor.y, point.y),
+                                Math.abs(point.x - anchor.x) + 1, Math.abs(point.y - anchor.y) + 1));
+                    }
+                } else if (image != null && last != null) {
+                    viewport.panBy(ImageViewer.this, e.getX() - last.x, e.getY() - last.y);
+                }
+                last = e.getPoint();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (anchor != null && !dragged && moved == null) {
+                    viewport.setSelection(null);
+                }
+                anchor = null;
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if (image != null) {
+                    double factor = Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+                    viewport.zoomAt(ImageViewer.this, factor, e.getX(), e.getY());
+                }
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    viewport.fit();
+                }
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    /** Показывает изображение; его размер становится размером общего Viewport. */
+    void setImage(BufferedImage image) {
+        display(image);
+        viewport.setSize(image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Показывает уменьшенную копию изображения размера Viewport (результат предпросмотра):
+     * она растягивается на весь размер, так что связанные области совпадают.
+     */
+    void setPreview(BufferedImage preview) {
+        display(preview);
+    }
+
+    /** Убирает изображение и показывает текст. */
+    void clear(String text) {
+        placeholder = text;
+        display(null);
+    }
+
+    /**
+     * Показанное изображение image изменилось внутри region (координаты изображения):
+     * пересчитываются только затронутые части уровней пирамиды и плитки. Другое
+     * изображение просто показывается через setImage.
+     */
+    void updateRegion(BufferedImage image, Rectangle region) {
+        if (image != this.image) {
+            setImage(image);
+            return;
+        }
+        if (pyramidWorker != null && !pyramidWorker.isDone()) {
+            // Уже построенные уровни могли не увидеть изменения: пирамида строится заново
+            display(image);
+            return;
+        }
+
+        for (int level = 1; level < levels.size(); level++) {
+            BufferedImage finer = levels.get(level - 1);
+            BufferedImage target = levels.get(level);
+            Graphics2D g = target.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            // Та же операция, что и в halve, но только в части уровня под областью
+            g.clip(levelRegion(region, target));
+            g.drawImage(finer, 0, 0, target.getWidth(), target.getHeight(), null);
+            g.dispose();
+        }
+
+        Iterator<Long> keys = tiles.keySet().iterator();
+        while (keys.hasNext()) {
+            long key = keys.next();
+            int level = (int) (key >>> 48);
+            int ty = (int) ((key >>> 24) & 0xFFFFFF);
+            int tx = (int) (key & 0xFFFFFF);
+            if (levelRegion(region, levels.get(level)).intersects(tx * TILE, ty * TILE, TILE, TILE)) {
+                keys.remove();
+            }
+        }
+        repaint();
+    }
+
+    /** Часть уровня, на которую влияет область изображения, с запасом на билинейную выборку. */
+    private Rectangle levelRegion(Rectangle region, BufferedImage level) {
+        double scaleX = (double) level.getWidth() / image.getWidth();
+        double scaleY = (double) level.getHeight() / image.getHeight();
+        int x0 = (int) Math.floor(region.x * scaleX) - 2;
+        int y0 = (int) Math.floor(region.y * scaleY) - 2;
+        int x1 = (int) Math.ceil((region.x + region.width) * scaleX) + 2;
+        int y1 = (int) Math.ceil((region.y + region.height) * scaleY) + 2;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(
+                new Rectangle(level.getWidth(), level.getHeight()));
+    }
+
+    private void display(BufferedImage image) {
+        if (pyramidWorker != null) {
+            pyramidWorker.cancel(false);
+            pyramidWorker = null;
+        }
+        this.image = image;
+        levels.clear();
+        tiles.clear();
+        if (image != null) {
+            levels.add(image);
+            if (Math.max(image.getWidth(), image.getHeight()) > TILE) {
+                buildPyramid(image);
+            }
+        }
+        repaint();
+    }
+
+    /** Уровни строятся по одному и показываются по мере готовности. */
+    private void buildPyramid(BufferedImage source) {
+        SwingWorker<Void, BufferedImage> worker = new SwingWorker<Void, BufferedImage>() {
+            @Override
+            protected Void doInBackground() {
+                BufferedImage level = source;
+                while (Math.max(level.getWidth(), level.getHeight()) > TILE && !isCancelled()) {
+                    level = halve(level);
+                    publish(level);
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(List<BufferedImage> chunks) {
+                if (pyramidWorker == this) {
+                    levels.addAll(chunks);
+                    repaint();
+                }
+            }
+        };
+        pyramidWorker = worker;
+        worker.execute();
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics.create();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+
+        if (image == null) {
+            g.setColor(Color.BLACK);
+            FontMetrics metrics = g.getFontMetrics();
+            g.drawString(placeholder, (getWidth() - metrics.stringWidth(placeholder)) / 2,
+                    (getHeight() + metrics.getAscent()) / 2);
+            g.dispose();
+            return;
+        }
+
+        double zoom = viewport.zoomFor(this);
+        // Уровень с разрешением не ниже экранного: пиксель уровня — 2^level пикселей изображения
+        double imagePerScreen = image.getWidth() / (viewport.width * zoom);
+        int wanted = imagePerScreen < 2 ? 0 : (int) Math.floor(Math.log(imagePerScreen) / Math.log(2));
+        int level = Math.min(wanted, levels.size() - 1);
+        BufferedImage source = levels.get(level);
+        // Экранных пикселей на пиксель уровня по каждой оси: изображение растягивается
+        // на размер Viewport (у нечётных размеров уровни чуть неровные)
+        double stepX = zoom * viewport.width / source.getWidth();
+        double stepY = zoom * viewport.height / source.getHeight();
+        double originX = getWidth() / 2.0 - viewport.centerX * zoom;
+        double originY = getHeight() / 2.0 - viewport.centerY * zoom;
+
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, stepX > 1
+                ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        Rectangle clip = g.getClipBounds();
+        if (level < wanted) {
+            // Нужный уровень ещё строится: видимая часть ближайшего готового, более подробного,
+            // рисуется одним вызовом без кэша — плиток у него на экране слишком много
+            int x0 = Math.max(0, (int) Math.floor((clip.x - originX) / stepX));
+            int y0 = Math.max(0, (int) Math.floor((clip.y - originY) / stepY));
+            int x1 = Math.min(source.getWidth(), (int) Math.ceil((clip.x + clip.width - originX) / stepX));
+            int y1 = Math.min(source.getHeight(), (int) Math.ceil((clip.y + clip.height - originY) / stepY));
+            if (x0 < x1 && y0 < y1) {
+                g.drawImage(source, (int) Math.round(originX + x0 * stepX), (int) Math.round(originY + y0 * stepY),
+                        (int) Math.round(originX + x1 * stepX), (int) Math.round(originY + y1 * stepY),
+                        x0, y0, x1, y1, null);
+            }
+            paintSelection(g, originX, originY, zoom);
+            g.dispose();
+            return;
+        }
+
+        int firstX = Math.max(0, (int) Math.floor((clip.x - originX) / stepX) / TILE);
+        int firstY = Math.max(0, (int) Math.floor((clip.y - originY) / stepY) / TILE);
+        int lastX = Math.min((source.getWidth() - 1) / TILE,
+                (int) Math.floor((clip.x + clip.width - originX) / stepX) / TILE);
+        int lastY = Math.min((source.getHeight() - 1) / TILE,
+                (int) Math.floor((clip.y + clip.height - originY) / stepY) / TILE);
+
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                int x0 = tx * TILE, y0 = ty * TILE;
+                int x1 = Math.min(x0 + TILE, source.getWidth());
+                int y1 = Math.min(y0 + TILE, source.getHeight());
+                // Края плиток считаются одной формулой, поэтому соседние плитки стыкуются без щелей
+                int sx0 = (int) Math.round(originX + x0 * stepX), sx1 = (int) Math.round(originX + x1 * stepX);
+                int sy0 = (int) Math.round(originY + y0 * stepY), sy1 = (int) Math.round(originY + y1 * stepY);
+                g.drawImage(tile(source, level, tx, ty, x1 - x0, y1 - y0), sx0, sy0, sx1, sy1,
+                        0, 0, x1 - x0, y1 - y0, null);
+            }
+        }
+        paintSelection(g, originX, originY, zoom);
+        g.dispose();
+    }
+
+    /** Рамка выделения: белый пунктир поверх чёрной линии виден на любом фоне. */
+    private void paintSelection(Graphics2D g, double originX, double originY, double zoom) {
+        Rectangle selection = viewport.selection;
+        if (selection == null) {
+            return;
+        }
+        int x0 = (int) Math.round(originX + selection.x * zoom);
+        int y0 = (int) Math.round(originY + selection.y * zoom);
+        int x1 = (int) Math.round(originX + (selection.x + selection.width) * zoom);
+        int y1 = (int) Math.round(originY + (selection.y + selection.height) * zoom);
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(1));
+        g.drawRect(x0, y0, Math.max(1, x1 - x0 - 1), Math.max(1, y1 - y0 - 1));
+        g.setColor(Color.WHITE);
+        g.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[]{4, 4}, 0));
+        g.drawRect(x0, y0, Math.max(1, x1 - x0 - 1), Math.max(1, y1 - y0 - 1));
+    }
+
+    /** Пиксель изображения под точкой области просмотра (может быть за пределами изображения). */
+    private Point imagePoint(Point point) {
+        double zoom = viewport.zoomFor(this);
+        return new Point((int) Math.floor(viewport.centerX + (point.x - getWidth() / 2.0) / zoom),
+                (int) Math.floor(viewport.centerY + (point.y - getHeight() / 2.0) / zoom));
+    }
+
+    /** Плитка уровня в изображении, совместимом с экраном (его Java2D рисует быстрее всего). */
+    private Image tile(BufferedImage source, int level, int tx, int ty, int width, int height) {
+        long key = ((long) level << 48) | ((long) ty << 24) | tx;
+        Image tile = tiles.get(key);
+        if (tile == null) {
+            GraphicsConfiguration configuration = getGraphicsConfiguration();
+            tile = configuration != null
+                    ? configuration.createCompatibleImage(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics g = tile.getGraphics();
+            g.drawImage(source.getSubimage(tx * TILE, ty * TILE, width, height), 0, 0, null);
+            g.dispose();
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Уровень вдвое меньше: билинейная интерполяция при уменьшении ровно в два раза
+     * усредняет блок 2 x 2. Полутоновое изображение остаётся полутоновым.
+     */
+    static BufferedImage halve(BufferedImage image) {
+        int width = Math.max(1, (image.getWidth() + 1) / 2);
+        int height = Math.max(1, (image.getHeight() + 1) / 2);
+        return resize(image, width, height);
+    }
+
+    /**
+     * Уменьшенная копия: уменьшение вдвое, пока изображение больше чем вдвое превышает
+     * нужный размер, затем одно билинейное — как getScaledInstance с усреднением, но быстрее.
+     */
+    static BufferedImage downscale(BufferedImage image, int width, int height) {
+        BufferedImage result = image;
+        while (result.getWidth() >= 2 * width && result.getHeight() >= 2 * height) {
+            result = halve(result);
+        }
+        return result.getWidth() == width && result.getHeight() == height && result != image
+                ? result : resize(result, width, height);
+    }
+
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        int type = image.getType() == BufferedImage.TYPE_BYTE_GRAY
+                ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage result = new BufferedImage(width, height, type);
+        Graphics2D g = result.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return result;
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Общий кэш готовых ядер свёртки для всех путей обработки: окна, предпросмотра,
+ * конвейера строк и пакетного режима. Одни и те же пары (размер, sigma) повторяются
+ * от изображения к изображению, поэтому экспоненты ядра считаются один раз.
+ * Кэш ограничен MAX_ENTRIES ядрами и вытесняет давно не использованные (LRU);
+ * доступ синхронизирован. Возвращаемые массивы общие — изменять их нельзя.
+ *
+ * Ядро строится вне блокировки: под ней в кэш кладётся только будущее значение, поэтому
+ * построение большого ядра не задерживает поиск других, а одно ядро всё равно строится один
+ * раз — остальные потоки, которым оно нужно, ждут его готовности.
+ */
+final class KernelCache {
+
+    // sigma меняется почти непрерывно (и масштабируется для предпросмотра), поэтому все ядра
+    // не поместятся ни при каком пределе — хранятся недавние. Самое большое ядро 151 x 151
+    // занимает около 180 КБ, так что кэш не больше примерно 12 МБ
+    private static final int MAX_ENTRIES = 64;
+
+    private enum Kind {
+        GAUSSIAN_1D, GAUSSIAN_2D, BOX_2D, GAUSSIAN_1D_FIXED, GAUSSIAN_2D_FIXED
+    }
+
+    private static final class Key {
+        final Kind kind;
+        final int size;
+        final double sigma;
+
+        Key(Kind kind, int size, double sigma) {
+            this.kind = kind;
+            this.size = size;
+            this.sigma = sigma;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return kind == key.kind && size == key.size && Double.compare(sigma, key.sigma) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, size, sigma);
+        }
+    }
+
+    private static final Map<Key, CompletableFuture<Object>> CACHE =
+            new LinkedHashMap<Key, CompletableFuture<Object>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CompletableFuture<Object>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Счётчики защищены блокировкой CACHE
+    private static long hits;
+    private static long misses;
+
+    private KernelCache() {
+    }
+
+    static double[] gaussian1D(int size, double sigma) {
+        return (double[]) get(Kind.GAUSSIAN_1D, size, sigma, () -> Convolution.createGaussianKernel1D(size, sigma));
+    }
+
+    static double[][] gaussian2D(int size, double sigma) {
+        return (double[][]) get(Kind.GAUSSIAN_2D, size, sigma, () -> Convolution.createGaussianKernel2D(size, sigma));
+    }
+
+    static double[][] box2D(int size) {
+        return (double[][]) get(Kind.BOX_2D, size, 0, () -> Convolution.createBoxKernel(size));
+    }
+
+    /** Одномерное гауссовское ядро в фиксированной точке (Convolution.toFixedPoint). */
+    static int[] gaussian1DFixed(int size, double sigma) {
+        return (int[]) get(Kind.GAUSSIAN_1D_FIXED, size, sigma,
+                () -> Convolution.toFixedPoint(gaussian1D(size, sigma)));
+    }
+
+    static int[][] gaussian2DFixed(int size, double sigma) {
+        return (int[][]) get(Kind.GAUSSIAN_2D_FIXED, size, sigma,
+                () -> Convolution.toFixedPoint(gaussian2D(size, sigma)));
+    }
+
+    static long hits() {
+        synchronized (CACHE) {
+            return hits;
+        }
+    }
+
+    static long misses() {
+        synchronized (CACHE) {
+            return misses;
+        }
+    }
+
+    private static Object get(Kind kind, int size, double sigma, Supplier<Object> factory) {
+        Key key = new Key(kind, size, sigma);
+        CompletableFuture<Object> kernel;
+        CompletableFuture<Object> built = null;
+        synchronized (CACHE) {
+            kernel = CACHE.get(key);
+            if (kernel != null) {
+                hits++;
+            } else {
+                misses++;
+                built = new CompletableFuture<>();
+                CACHE.put(key, built);
+                kernel = built;
+            }
+        }
+
+        if (built != null) {
+            try {
+                built.complete(factory.get());
+            } catch (RuntimeException | Error ex) {
+                // Неудачное построение не кэшируется: следующий запрос попробует снова
+                synchronized (CACHE) {
+                    CACHE.remove(key, built);
+                }
+                built.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+        try {
+            return kernel.join();
+        } catch (CompletionException ex) {
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+    }
+}
@@ -8,14 +8,22 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
 
 public class Main extends JFrame {
     private BufferedImage originalImage;
     private BufferedImage processedImage;
-    private JLabel originalImageLabel;
-    private JLabel processedImageLabel;
+    private ImageViewer originalViewer;
+    private ImageViewer processedViewer;
     private JComboBox<String> operationComboBox;
     private JComboBox<String> filterComboBox;
     private JComboBox<String> morphComboBox;
@@ -26,6 +34,55 @@ public class Main extends JFrame {
     private JLabel sigmaLabel;
     private JLabel kernelSizeTitleLabel;
     private JLabel sigmaTitleLabel;
+    private JLabel convolutionModeTitleLabel;
+    private JCheckBox fastPathCheckBox;
+    private JCheckBox vectorCheckBox;
+    private JCheckBox fixedPointCheckBox;
+    private JComboBox<BorderMode> borderComboBox;
+    private JSpinner threadCountSpinner;
+    private JLabel binaryModeTitleLabel;
+    private JPanel binaryModePanel;
+    private JCheckBox binaryModeCheckBox;
+    private JSpinner thresholdSpinner;
+    private JLabel colorModeTitleLabel;
+    private JComboBox<String> colorModeComboBox;
+    private JLabel pipelineTitleLabel;
+    private JTextField pipelineField;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private ProcessingWorker currentWorker;
+    private JCheckBox previewCheckBox;
+    private BufferedImage previewProxy;
+    private double previewScale = 1.0;
+    private SwingWorker<BufferedImage, Void> previewWorker;
+    private Supplier<BufferedImage> pendingPreview;
+    private int resultVersion;
+    private JSpinner cacheSizeSpinner;
+    private JCheckBox spillCheckBox;
+    private JButton undoButton;
+    private JButton redoButton;
+    private ImageViewer.Viewport viewport;
+    private JCheckBox regionCheckBox;
+    // Холст обработки выделенной области с текущими параметрами
+    private RegionProcessor regionProcessor;
+    private ProcessingWorker regionWorker;
+    private boolean regionPending;
+    // Файл исходного изображения для ключей ResultCache: тот же файл, открытый снова, находит свои результаты
+    private String sourceId;
+    // Выполненные обработки текущего изображения; сами результаты хранит ResultCache
+    private final List<ProcessingTask> history = new ArrayList<>();
+    private int historyIndex = -1;
+    private volatile ParallelExecutor executor = new ParallelExecutor(Runtime.getRuntime().availableProcessors());
+    // Пулы, заменённые при смене числа потоков: фоновая задача могла запомнить пул или начать
+    // на нём следующий проход, поэтому они закрываются, только когда фоновых задач не останется.
+    // Оба поля защищены блокировкой retiredExecutors
+    private final List<ParallelExecutor> retiredExecutors = new ArrayList<>();
+    private int runningTasks;
+
+    // Больший размер уменьшенной копии для предпросмотра: как у области отображения
+    private static final int PREVIEW_SIZE = 400;
+    // Шаги истории занимают мало памяти (параметры без изображений), ограничение — для удобства
+    private static final int MAX_HISTORY = 100;
 
     public Main() {
         initializeUI();
@@ -37,20 +94,26 @@ public class Main extends JFrame {
         setLayout(new BorderLayout());
 
         // Панель для изображений
+        // Обе области показывают одно и то же место в одном масштабе
         JPanel imagePanel = new JPanel(new GridLayout(1, 2, 10, 10));
-        originalImageLabel = new JLabel("Исходное изображение", SwingConstants.CENTER);
-        processedImageLabel = new JLabel("Обработанное изображение", SwingConstants.CENTER);
-
-        originalImageLabel.setPreferredSize(new Dimension(400, 400));
-        processedImageLabel.setPreferredSize(new Dimension(400, 400));
-        originalImageLabel.setBorder(BorderFactory.createLineBorder(Color.BLACK));
-        processedImageLabel.setBorder(BorderFactory.createLineBorder(Color.BLACK));
-
-        imagePanel.add(originalImageLabel);
-        imagePanel.add(processedImageLabel);
+        viewport = new ImageViewer.Viewport();
+        originalViewer = new ImageViewer(viewport, "Исходное изображение");
+        processedViewer = new ImageViewer(viewport, "Обработанное изображение");
+
+        originalViewer.setPreferredSize(new Dimension(400, 400));
+        processedViewer.setPreferredSize(new Dimension(400, 400));
+        originalViewer.setBorder(BorderFactory.createLineBorder(Color.BLACK));
+        processedViewer.setBorder(BorderFactory.createLineBorder(Color.BLACK));
+        originalViewer.setToolTipText("<html>Колесо мыши — масштаб, перетаскивание — сдвиг, двойной щелчок — "
+                + "по размеру окна,<br>Shift + перетаскивание — выделение области, "
+                + "Shift + щелчок — снять выделение</html>");
+        processedViewer.setToolTipText(originalViewer.getToolTipText());
+
+        imagePanel.add(originalViewer);
+        imagePanel.add(processedViewer);
 
         // Панель управления
-        JPanel controlPanel = new JPanel(new GridLayout(7, 2, 5, 5));
+        JPanel controlPanel = new JPanel(new GridLayout(15, 2, 5, 5));
 
         // Кнопка загрузки изображения
         JButton loadButton = new JButton("Загрузить изображение");
@@ -59,7 +122,7 @@ public class Main extends JFrame {
         // Выбор типа операции
         controlPanel.add(new JLabel("Тип операции:"));
         operationComboBox = new JComboBox<>(new String[]{
-                "Низкочастотный фильтр", "Морфологическая обработка"
+                "Низкочастотный фильтр", "Морфологическая обработка", "Цепочка операций"
         });
         operationComboBox.addActionListener(new OperationTypeListener());
         controlPanel.add(operationComboBox);
@@ -67,7 +130,7 @@ public class Main extends JFrame {
         // Выбор фильтра (изначально видим)
         controlPanel.add(new JLabel("Низкочастотный фильтр:"));
         filterComboBox = new JComboBox<>(new String[]{
-                "Гауссовский", "Усредняющий", "Медианный"
+                "Гауссовский", "Гауссовский (рекурсивный)", "Усредняющий", "Медианный"
         });
         filterComboBox.addActionListener(new FilterTypeListener());
         controlPanel.add(filterComboBox);
@@ -75,8 +138,15 @@ public class Main extends JFrame {
         // Выбор морфологической операции (изначально скрыт)
         controlPanel.add(new JLabel("Морфологическая операция:"));
         morphComboBox = new JComboBox<>(new String[]{
-                "Эрозия", "Дилатация", "Открытие", "Закрытие"
+                "Эрозия", "Дилатация", "Открытие", "Закрытие", "Градиент", "Белый top-hat", "Чёрный top-hat",
+                "Реконструкция дилатацией", "Реконструкция эрозией", "Заполнение дыр"
         });
+        morphComboBox.setToolTipText("<html>Градиент — дилатация минус эрозия; белый top-hat — изображение минус "
+                + "открытие,<br>чёрный — закрытие минус изображение. Реконструкция дилатацией восстанавливает "
+                + "объекты,<br>пережившие эрозию, эрозией — дыры, пережившие дилатацию. Заполнение дыр "
+                + "не использует элемент</html>");
+        morphComboBox.addActionListener(e -> structElementComboBox.setEnabled(
+                !"Заполнение дыр".equals(morphComboBox.getSelectedItem())));
         controlPanel.add(morphComboBox);
         morphComboBox.setVisible(false);
         controlPanel.getComponent(4).setVisible(false); // Скрываем и label
@@ -84,18 +154,57 @@ public class Main extends JFrame {
         // Выбор структурирующего элемента (изначально скрыт)
         controlPanel.add(new JLabel("Структурный элемент:"));
         structElementComboBox = new JComboBox<>(new String[]{
-                "Квадрат 3x3", "Квадрат 5x5", "Круг", "Крест"
+                "Квадрат 3x3", "Квадрат 5x5", "Круг", "Крест",
+                "Квадрат (размер ядра)", "Круг (размер ядра)", "Крест (размер ядра)"
         });
+        structElementComboBox.addActionListener(new StructElementListener());
         controlPanel.add(structElementComboBox);
         structElementComboBox.setVisible(false);
         controlPanel.getComponent(6).setVisible(false); // Скрываем и label
 
+        // Бинарный режим морфологии: порог и упакованная маска (изначально скрыт)
+        binaryModeTitleLabel = new JLabel("Бинарная маска:");
+        controlPanel.add(binaryModeTitleLabel);
+        binaryModePanel = new JPanel(new BorderLayout());
+        binaryModeCheckBox = new JCheckBox("Порог", false);
+        thresholdSpinner = new JSpinner(new SpinnerNumberModel(128, 0, 255, 1));
+        binaryModePanel.add(binaryModeCheckBox, BorderLayout.CENTER);
+        binaryModePanel.add(thresholdSpinner, BorderLayout.EAST);
+        controlPanel.add(binaryModePanel);
+        binaryModeTitleLabel.setVisible(false);
+        binaryModePanel.setVisible(false);
+
+        // Морфология цветного изображения: полутоновое, по каналам или векторная (изначально скрыт)
+        colorModeTitleLabel = new JLabel("Цвет:");
+        controlPanel.add(colorModeTitleLabel);
+        colorModeComboBox = new JComboBox<>(new String[]{"Полутоновое", "По каналам", "По яркости"});
+        colorModeComboBox.setToolTipText("<html>По каналам — минимум и максимум в каждом канале R, G, B отдельно;<br>"
+                + "по яркости — пиксель выбирается целиком, самый тёмный или светлый под элементом,<br>"
+                + "и новых цветов не появляется (реконструкция и заполнение дыр — по каналам).<br>"
+                + "Бинарный режим и полутоновые изображения всегда обрабатываются одним каналом</html>");
+        controlPanel.add(colorModeComboBox);
+        colorModeTitleLabel.setVisible(false);
+        colorModeComboBox.setVisible(false);
+
+        // Цепочка операций, выполняемая потоковым конвейером строк (изначально скрыта)
+        pipelineTitleLabel = new JLabel("Цепочка:");
+        controlPanel.add(pipelineTitleLabel);
+        pipelineField = new JTextField("gauss:5:1.0 closing:disk9");
+        pipelineField.setToolTipText("<html>Этапы через пробел: gauss:размер:sigma, average:размер, median:размер,"
+                + " threshold:порог,<br>erosion/dilation/opening/closing:элемент (square3, square5, disk, cross,"
+                + " squareN, diskN, crossN)</html>");
+        controlPanel.add(pipelineField);
+        pipelineTitleLabel.setVisible(false);
+        pipelineField.setVisible(false);
+
         // Слайдер для размера ядра
         kernelSizeTitleLabel = new JLabel("Размер ядра:");
         controlPanel.add(kernelSizeTitleLabel);
         JPanel kernelPanel = new JPanel(new BorderLayout());
-        kernelSizeSlider = new JSlider(3, 15, 3);
-        kernelSizeSlider.setMajorTickSpacing(2);
+        // Большие ядра (фон, радиус 50+) свёртка считает через БПФ, остальные фильтры — за O(1) на пиксель
+        kernelSizeSlider = new JSlider(3, 151, 3);
+        kernelSizeSlider.setMajorTickSpacing(20);
+        kernelSizeSlider.setMinorTickSpacing(2);
         kernelSizeSlider.setPaintTicks(true);
         kernelSizeLabel = new JLabel("3x3");
         kernelSizeSlider.addChangeListener(new KernelSizeListener());
@@ -107,8 +216,9 @@ public class Main extends JFrame {
         sigmaTitleLabel = new JLabel("Sigma (Гаусс):");
         controlPanel.add(sigmaTitleLabel);
         JPanel sigmaPanel = new JPanel(new BorderLayout());
-        sigmaSlider = new JSlider(1, 50, 10);
-        sigmaSlider.setMajorTickSpacing(10);
+        // Рекурсивный вариант не зависит от размера ядра, поэтому sigma может быть большой
+        sigmaSlider = new JSlider(1, 500, 10);
+        sigmaSlider.setMajorTickSpacing(50);
         sigmaSlider.setPaintTicks(true);
         sigmaLabel = new JLabel("1.0");
         sigmaSlider.addChangeListener(new SigmaListener());
@@ -116,6 +226,78 @@ public class Main extends JFrame {
         sigmaPanel.add(sigmaLabel, BorderLayout.EAST);
         controlPanel.add(sigmaPanel);
 
+        // Режим вычислений для низкочастотных фильтров
+        convolutionModeTitleLabel = new JLabel("Режим вычислений:");
+        controlPanel.add(convolutionModeTitleLabel);
+        fastPathCheckBox = new JCheckBox("Быстрые алгоритмы", true);
+        fastPathCheckBox.setToolTipText("Гаусс: сепарабельная свёртка, усреднение: скользящие суммы, "
+                + "медиана: скользящие гистограммы, морфология: van Herk / Gil-Werman");
+        // Векторная свёртка доступна, только если JVM запущена с --add-modules jdk.incubator.vector
+        vectorCheckBox = new JCheckBox("SIMD", Convolution.isVectorAvailable());
+        vectorCheckBox.setEnabled(Convolution.isVectorAvailable());
+        vectorCheckBox.setToolTipText(Convolution.isVectorAvailable()
+                ? "Свёртка на Vector API: " + Convolution.vectorDescription()
+                : "Недоступно: соберите simd/VectorConvolution.java и запустите с --add-modules jdk.incubator.vector");
+        vectorCheckBox.addActionListener(e -> Convolution.setVectorEnabled(vectorCheckBox.isSelected()));
+        // Целочисленная свёртка даёт одинаковый результат на любой JVM — для сравнения результатов
+        fixedPointCheckBox = new JCheckBox("Q16");
+        fixedPointCheckBox.setToolTipText("Свёртка в целых числах: веса в фиксированной точке Q16, "
+                + "накопление в int/long, округление до ближайшего; усреднение — точное целое среднее окна");
+        JPanel flagsPanel = new JPanel(new GridLayout(1, 2));
+        flagsPanel.add(vectorCheckBox);
+        flagsPanel.add(fixedPointCheckBox);
+        JPanel modePanel = new JPanel(new BorderLayout());
+        modePanel.add(fastPathCheckBox, BorderLayout.CENTER);
+        modePanel.add(flagsPanel, BorderLayout.EAST);
+        controlPanel.add(modePanel);
+
+        // Продолжение изображения за границей для фильтров и морфологии
+        controlPanel.add(new JLabel("Граница:"));
+        borderComboBox = new JComboBox<>(BorderMode.values());
+        borderComboBox.setToolTipText("Бинарная морфология, рекурсивный Гаусс, цепочка операций "
+                + "и обработка по частям всегда повторяют крайние пиксели");
+        controlPanel.add(borderComboBox);
+
+        // Число потоков для параллельной обработки полосами
+        controlPanel.add(new JLabel("Потоков:"));
+        int processors = Runtime.getRuntime().availableProcessors();
+        threadCountSpinner = new JSpinner(new SpinnerNumberModel(processors, 1, Math.max(64, processors), 1));
+        threadCountSpinner.addChangeListener(new ThreadCountListener());
+        controlPanel.add(threadCountSpinner);
+
+        // Предпросмотр на уменьшенной копии при перемещении слайдеров
+        controlPanel.add(new JLabel("Предпросмотр:"));
+        previewCheckBox = new JCheckBox("При изменении параметров", false);
+        previewCheckBox.addActionListener(e -> {
+            if (previewCheckBox.isSelected() && originalImage != null) {
+                requestPreview();
+            }
+        });
+        controlPanel.add(previewCheckBox);
+
+        // Обработка только выделенной области: при её сдвиге считаются только новые части
+        controlPanel.add(new JLabel("Область:"));
+        regionCheckBox = new JCheckBox("Только выделенная (Shift + мышь)", false);
+        regionCheckBox.setToolTipText("Фильтр или морфология считается только в выделении с ореолом, "
+                + "результат обновляется при сдвиге области и изменении слайдеров");
+        regionCheckBox.addActionListener(e -> requestRegion());
+        viewport.setSelectionListener(region -> requestRegion());
+        controlPanel.add(regionCheckBox);
+
+        // Готовые результаты: возврат к прежним параметрам не пересчитывает изображение
+        controlPanel.add(new JLabel("Кэш результатов, МБ:"));
+        long maxMemory = Runtime.getRuntime().maxMemory() >> 20;
+        cacheSizeSpinner = new JSpinner(new SpinnerNumberModel((int) (maxMemory / 4), 0, (int) maxMemory, 64));
+        cacheSizeSpinner.addChangeListener(e ->
+                ResultCache.setCapacity(((Integer) cacheSizeSpinner.getValue()).longValue() << 20));
+        spillCheckBox = new JCheckBox("Выгрузка на диск", false);
+        spillCheckBox.setToolTipText("Вытесненные из памяти результаты сжимаются во временные файлы");
+        spillCheckBox.addActionListener(e -> ResultCache.setSpillEnabled(spillCheckBox.isSelected()));
+        JPanel cachePanel = new JPanel(new BorderLayout());
+        cachePanel.add(cacheSizeSpinner, BorderLayout.CENTER);
+        cachePanel.add(spillCheckBox, BorderLayout.EAST);
+        controlPanel.add(cachePanel);
+
         // Кнопка применения фильтров
         JButton applyButton = new JButton("Применить обработку");
         applyButton.addActionListener(new ApplyFilterListener());
@@ -124,6 +306,49 @@ public class Main extends JFrame {
         JButton saveButton = new JButton("Сохранить результат");
         saveButton.addActionListener(new SaveImageListener());
 
+        // Переход по истории обработок текущего изображения
+        undoButton = new JButton("Отменить");
+        undoButton.setToolTipText("Предыдущий результат (Ctrl+Z)");
+        undoButton.addActionListener(e -> moveInHistory(-1));
+        redoButton = new JButton("Повторить");
+        redoButton.setToolTipText("Следующий результат (Ctrl+Y)");
+        redoButton.addActionListener(e -> moveInHistory(1));
+        InputMap keys = getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        keys.put(KeyStroke.getKeyStroke("ctrl Z"), "undo");
+        keys.put(KeyStroke.getKeyStroke("ctrl Y"), "redo");
+        keys.put(KeyStroke.getKeyStroke("ctrl shift Z"), "redo");
+        getRootPane().getActionMap().put("undo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                moveInHistory(-1);
+            }
+        });
+        getRootPane().getActionMap().put("redo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                moveInHistory(1);
+            }
+        });
+        updateHistoryButtons();
+
+        // Обработка файла, не помещающегося в память, полосами
+        JButton tiledButton = new JButton("Обработать файл по частям");
+        tiledButton.setToolTipText("Файл читается и записывается полосами строк, изображение целиком в память "
+                + "не загружается. Используются быстрые алгоритмы и повтор края");
+        tiledButton.addActionListener(new TiledProcessingListener());
+
+        // Прогресс фоновой обработки и её отмена
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        cancelButton = new JButton("Отмена");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> {
+            if (currentWorker != null) {
+                currentWorker.cancelJob();
+            }
+        });
+
         // Основная компоновка
         add(imagePanel, BorderLayout.CENTER);
 
@@ -133,7 +358,12 @@ public class Main extends JFrame {
         JPanel buttonPanel = new JPanel(new FlowLayout());
         buttonPanel.add(loadButton);
         buttonPanel.add(applyButton);
+        buttonPanel.add(undoButton);
+        buttonPanel.add(redoButton);
         buttonPanel.add(saveButton);
+        buttonPanel.add(tiledButton);
+        buttonPanel.add(progressBar);
+        buttonPanel.add(cancelButton);
 
         bottomPanel.add(buttonPanel, BorderLayout.SOUTH);
         add(bottomPanel, BorderLayout.SOUTH);
@@ -151,11 +381,19 @@ public class Main extends JFrame {
         public void actionPerformed(ActionEvent e) {
             String selectedOperation = (String) operationComboBox.getSelectedItem();
             boolean isFilter = "Низкочастотный фильтр".equals(selectedOperation);
+            boolean isMorph = "Морфологическая обработка".equals(selectedOperation);
+            boolean isPipeline = "Цепочка операций".equals(selectedOperation);
 
             // Показываем/скрываем элементы управления в зависимости от выбора
             filterComboBox.setVisible(isFilter);
-            morphComboBox.setVisible(!isFilter);
-            structElementComboBox.setVisible(!isFilter);
+            morphComboBox.setVisible(isMorph);
+            structElementComboBox.setVisible(isMorph);
+            binaryModeTitleLabel.setVisible(isMorph);
+            binaryModePanel.setVisible(isMorph);
+            colorModeTitleLabel.setVisible(isMorph);
+            colorModeComboBox.setVisible(isMorph);
+            pipelineTitleLabel.setVisible(isPipeline);
+            pipelineField.setVisible(isPipeline);
 
             // Показываем/скрываем соответствующие labels
             Container parent = filterComboBox.getParent();
@@ -165,17 +403,15 @@ public class Main extends JFrame {
                     if ("Низкочастотный фильтр:".equals(label.getText())) {
                         label.setVisible(isFilter);
                     } else if ("Морфологическая операция:".equals(label.getText())) {
-                        label.setVisible(!isFilter);
+                        label.setVisible(isMorph);
                     } else if ("Структурный элемент:".equals(label.getText())) {
-                        label.setVisible(!isFilter);
+                        label.setVisible(isMorph);
                     }
                 }
             }
 
             // Показываем/скрываем слайдеры в зависимости от типа операции
-            kernelSizeSlider.setVisible(isFilter);
-            kernelSizeLabel.setVisible(isFilter);
-            kernelSizeTitleLabel.setVisible(isFilter);
+            updateKernelSizeVisibility();
 
             // Для морфологических операций скрываем sigma
             if (!isFilter) {
@@ -194,13 +430,38 @@ public class Main extends JFrame {
     private class FilterTypeListener implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent e) {
+            updateKernelSizeVisibility();
             updateSigmaVisibility();
         }
     }
 
+    private class StructElementListener implements ActionListener {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            updateKernelSizeVisibility();
+            pack();
+        }
+    }
+
+    /**
+     * Размер ядра нужен фильтрам (кроме рекурсивного гауссовского, которому хватает sigma)
+     * и структурным элементам, размер которых задаётся слайдером.
+     */
+    private void updateKernelSizeVisibility() {
+        String selectedOperation = (String) operationComboBox.getSelectedItem();
+        String selectedStruct = (String) structElementComboBox.getSelectedItem();
+        boolean show = ("Низкочастотный фильтр".equals(selectedOperation)
+                && !"Гауссовский (рекурсивный)".equals(filterComboBox.getSelectedItem()))
+                || ("Морфологическая обработка".equals(selectedOperation) && selectedStruct.endsWith("(размер ядра)"));
+
+        kernelSizeSlider.setVisible(show);
+        kernelSizeLabel.setVisible(show);
+        kernelSizeTitleLabel.setVisible(show);
+    }
+
     private void updateSigmaVisibility() {
         String selectedFilter = (String) filterComboBox.getSelectedItem();
-        boolean showSigma = "Гауссовский".equals(selectedFilter);
+        boolean showSigma = selectedFilter.startsWith("Гауссовский");
 
         sigmaSlider.setVisible(showSigma);
         sigmaLabel.setVisible(showSigma);
@@ -222,9 +483,20 @@ public class Main extends JFrame {
                     File file = fileChooser.getSelectedFile();
                     originalImage = ImageIO.read(file);
                     processedImage = null;
-                    displayImage(originalImage, originalImageLabel);
-                    processedImageLabel.setIcon(null);
-                    processedImageLabel.setText("Обработанное изображение");
+                    sourceId = file.getCanonicalPath() + ":" + file.lastModified() + ":" + file.length();
+                    history.clear();
+                    historyIndex = -1;
+                    regionProcessor = null;
+                    updateHistoryButtons();
+                    if (originalImage != null) {
+                        // Палитры, 16-битные и прочие форматы приводятся к одному из трёх канонических
+                        originalImage = ImageFormat.normalize(originalImage);
+                        createPreviewProxy();
+                    }
+                    if (originalImage != null) {
+                        originalViewer.setImage(originalImage);
+                    }
+                    processedViewer.clear("Обработанное изображение");
                 } catch (IOException ex) {
                     JOptionPane.showMessageDialog(Main.this,
                             "Ошибка загрузки изображения: " + ex.getMessage(),
@@ -244,21 +516,522 @@ public class Main extends JFrame {
                 return;
             }
 
-            String selectedOperation = (String) operationComboBox.getSelectedItem();
+            applyProcessing();
+        }
+    }
 
-            if ("Низкочастотный фильтр".equals(selectedOperation)) {
-                // Применяем только низкочастотный фильтр
-                String selectedFilter = (String) filterComboBox.getSelectedItem();
-                processedImage = applyLowPassFilter(originalImage, selectedFilter);
-            } else {
-                // Применяем только морфологическую операцию
-                String selectedMorph = (String) morphComboBox.getSelectedItem();
-                String selectedStruct = (String) structElementComboBox.getSelectedItem();
-                processedImage = applyMorphologicalOperation(originalImage, selectedMorph, selectedStruct);
+    /**
+     * Полноразмерная обработка исходного изображения с текущими параметрами. Результат
+     * с теми же параметрами, уже посчитанный для этого файла, берётся из ResultCache.
+     */
+    private void applyProcessing() {
+        ProcessingTask task;
+        try {
+            if (isRegionMode()) {
+                processRegion(captureOperation(1.0));
+                return;
             }
+            task = captureTask(originalImage, 1.0);
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(Main.this,
+                    "Ошибка в описании цепочки: " + ex.getMessage(),
+                    "Ошибка", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
 
-            displayImage(processedImage, processedImageLabel);
+        String key = sourceId + "|" + task.key;
+        Supplier<BufferedImage> compute = task.work;
+        startProcessing(new ProcessingTask(task.passes, task.description, key, () -> {
+            BufferedImage cached = ResultCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            BufferedImage result = compute.get();
+            ResultCache.put(key, result);
+            return result;
+        }), true);
+    }
+
+    /**
+     * Обработка, подготовленная к запуску в фоне: число проходов для прогресса и сама работа.
+     * key — все параметры, от которых зависит результат, description — их краткое описание
+     * для пользователя; у обработки по частям их нет.
+     */
+    private static final class ProcessingTask {
+        final int passes;
+        final String description;
+        final String key;
+        final Supplier<BufferedImage> work;
+
+        ProcessingTask(int passes, Supplier<BufferedImage> work) {
+            this(passes, null, null, work);
+        }
+
+        ProcessingTask(int passes, String description, String key, Supplier<BufferedImage> work) {
+            this.passes = passes;
+            this.description = description;
+            this.key = key;
+            this.work = work;
+        }
+    }
+
+    private boolean isRegionMode() {
+        return regionCheckBox.isSelected() && originalImage != null && viewport.getSelection() != null;
+    }
+
+    /**
+     * Обновляет результат в выделенной области после её изменения. Пока предыдущее обновление
+     * выполняется, новые запросы только отмечаются, и по его завершении считается последнее
+     * положение области — так при перетаскивании обработка не отменяется на каждом движении мыши.
+     */
+    private void requestRegion() {
+        if (!isRegionMode()) {
+            return;
         }
+        if (regionWorker != null && regionWorker == currentWorker && !regionWorker.isDone()) {
+            regionPending = true;
+            return;
+        }
+        try {
+            processRegion(captureOperation(1.0));
+        } catch (IllegalArgumentException ex) {
+            // Об ошибке в цепочке сообщит кнопка "Применить обработку"
+        }
+    }
+
+    /**
+     * Считает части выделения, которых ещё нет на холсте RegionProcessor с этими параметрами;
+     * холст становится обработанным изображением. В историю и ResultCache частичный
+     * результат не попадает.
+     */
+    private void processRegion(Operation operation) {
+        String key = sourceId + "|" + operation.key;
+        if (regionProcessor == null || !regionProcessor.matches(originalImage, key)) {
+            regionProcessor = new RegionProcessor(originalImage, key, operation.halo, operation.border);
+        }
+        RegionProcessor processor = regionProcessor;
+        List<Rectangle> regions = processor.missing(viewport.getSelection());
+
+        if (regions.isEmpty()) {
+            // Всё уже посчитано; холст мог смениться полным результатом или шагом истории
+            BufferedImage canvas = processor.canvas();
+            if (canvas != null && canvas != processedImage && currentWorker == null) {
+                processedImage = canvas;
+                resultVersion++;
+                processedViewer.setImage(canvas);
+            }
+            return;
+        }
+
+        startProcessing(new ProcessingTask(operation.passes * regions.size(),
+                () -> processor.run(regions, operation.function)), false);
+        regionWorker = currentWorker;
+    }
+
+    /** Шаг назад (-1) или вперёд (1) по истории: результат берётся из кэша или считается заново. */
+    private void moveInHistory(int step) {
+        int index = historyIndex + step;
+        if (index < 0 || index >= history.size()) {
+            return;
+        }
+        historyIndex = index;
+        updateHistoryButtons();
+        startProcessing(history.get(index), false);
+    }
+
+    /** Добавляет показанный результат в историю; шаги после текущего отбрасываются. */
+    private void recordHistory(ProcessingTask task) {
+        if (historyIndex >= 0 && history.get(historyIndex).key.equals(task.key)) {
+            return;
+        }
+        history.subList(historyIndex + 1, history.size()).clear();
+        history.add(task);
+        if (history.size() > MAX_HISTORY) {
+            history.remove(0);
+        }
+        historyIndex = history.size() - 1;
+        updateHistoryButtons();
+    }
+
+    private void updateHistoryButtons() {
+        undoButton.setEnabled(historyIndex > 0);
+        redoButton.setEnabled(historyIndex < history.size() - 1);
+    }
+
+    /**
+     * Считывает параметры из элементов управления (в потоке событий: обработка идёт в фоне
+     * и не должна видеть изменений, сделанных после запуска). scale — масштаб source
+     * относительно исходного изображения: размер ядра и sigma уменьшаются вместе с ним.
+     * Ошибка в описании цепочки — IllegalArgumentException.
+     */
+    private ProcessingTask captureTask(BufferedImage source, double scale) {
+        Operation operation = captureOperation(scale);
+        return new ProcessingTask(operation.passes, operation.description, operation.key,
+                () -> operation.function.apply(source));
+    }
+
+    /**
+     * Операция с текущими параметрами, применимая к любому изображению: полному, уменьшенному
+     * или вырезке с ореолом halo (радиус, на котором пиксель результата зависит от входа).
+     * border — продолжение за границей, которое операция использует на самом деле.
+     */
+    private static final class Operation {
+        final int passes;
+        final int halo;
+        final BorderMode border;
+        final String description;
+        final String key;
+        final UnaryOperator<BufferedImage> function;
+
+        Operation(int passes, int halo, BorderMode border, String description, String key,
+                  UnaryOperator<BufferedImage> function) {
+            this.passes = passes;
+            this.halo = halo;
+            this.border = border;
+            this.description = description;
+            this.key = key;
+            this.function = function;
+        }
+    }
+
+    /** Параметры операции из элементов управления, как в captureTask. */
+    private Operation captureOperation(double scale) {
+        String selectedOperation = (String) operationComboBox.getSelectedItem();
+        int kernelSize = scaleKernelSize(kernelSizeSlider.getValue(), scale);
+        boolean fast = fastPathCheckBox.isSelected();
+        BorderMode border = (BorderMode) borderComboBox.getSelectedItem();
+        String simd = Convolution.isVectorEnabled() ? ", SIMD" : "";
+        UnaryOperator<BufferedImage> function;
+        int halo = kernelSize / 2;
+        BorderMode effectiveBorder = border;
+        String description;
+        // Флаги, которые меняют результат (хотя бы округлением), но в описание не выносятся
+        String flags;
+        int passes = 1;
+
+        if ("Низкочастотный фильтр".equals(selectedOperation)) {
+            String selectedFilter = (String) filterComboBox.getSelectedItem();
+            double sigma = sigmaSlider.getValue() / 10.0 * scale;
+            boolean fixed = fixedPointCheckBox.isSelected();
+            function = image -> applyLowPassFilter(image, selectedFilter, kernelSize, sigma, fast, fixed, border);
+            switch (selectedFilter) {
+                case "Гауссовский":
+                    description = selectedFilter + ", " + kernelSize + "x" + kernelSize + ", sigma " + sigma;
+                    flags = fast + ", " + fixed + simd + ", " + border;
+                    break;
+                case "Гауссовский (рекурсивный)":
+                    // Размер ядра и граница не используются
+                    description = selectedFilter + ", sigma " + sigma;
+                    flags = simd;
+                    passes = 2;
+                    effectiveBorder = BorderMode.CLAMP;
+                    // Отклик рекурсивного фильтра бесконечен, но за 4 sigma его вклад меньше 0.1 уровня
+                    halo = (int) Math.ceil(4 * sigma);
+                    break;
+                case "Усредняющий":
+                    description = selectedFilter + ", " + kernelSize + "x" + kernelSize;
+                    flags = fast + ", " + fixed + simd + ", " + border;
+                    break;
+                default:
+                    // Оба алгоритма медианы точны
+                    description = selectedFilter + ", " + kernelSize + "x" + kernelSize;
+                    flags = String.valueOf(border);
+                    break;
+            }
+        } else if ("Цепочка операций".equals(selectedOperation)) {
+            RowPipeline pipeline = RowPipeline.parse(pipelineField.getText());
+            function = image -> applyPipeline(image, pipeline);
+            halo = pipeline.radius();
+            effectiveBorder = BorderMode.CLAMP;
+            description = "Цепочка: " + pipelineField.getText().trim().replaceAll("\\s+", " ");
+            flags = simd;
+        } else {
+            String selectedMorph = (String) morphComboBox.getSelectedItem();
+            String selectedStruct = (String) structElementComboBox.getSelectedItem();
+            boolean[][] kernel = createStructuringElement(selectedStruct, kernelSize);
+            boolean binary = binaryModeCheckBox.isSelected();
+            int threshold = (Integer) thresholdSpinner.getValue();
+            // Бинарный режим всегда работает с полутоновым каналом
+            String colorMode = binary ? "Полутоновое" : (String) colorModeComboBox.getSelectedItem();
+            boolean vector = "По яркости".equals(colorMode);
+            // Четыре основные операции бинарного режима идут по упакованной маске без границы
+            boolean packed = binary && isMaskOperation(selectedMorph);
+            // Векторный шаг — ещё два прохода: каналы в ключи и обратно
+            int step = vector ? 3 : 1;
+            // Открытие и закрытие за один проход конвейера строк
+            int openingPasses = vector ? 4 : (packed || !fast || border != BorderMode.CLAMP ? 2 : 1);
+            int radius = kernel.length / 2;
+            passes = step;
+            switch (selectedMorph) {
+                case "Открытие":
+                case "Закрытие":
+                    passes = openingPasses;
+                    halo = 2 * radius;
+                    break;
+                case "Градиент":
+                    passes = 2 * step + 1;
+                    halo = radius;
+                    break;
+                case "Белый top-hat":
+                case "Чёрный top-hat":
+                    passes = openingPasses + 1;
+                    halo = 2 * radius;
+                    break;
+                case "Реконструкция дилатацией":
+                case "Реконструкция эрозией":
+                    // Маркер и два растровых прохода; результат зависит от всего изображения
+                    passes = step + 2;
+                    halo = RegionProcessor.WHOLE_IMAGE;
+                    break;
+                case "Заполнение дыр":
+                    passes = 2;
+                    halo = RegionProcessor.WHOLE_IMAGE;
+                    break;
+                default:
+                    halo = radius;
+                    break;
+            }
+            function = image -> applyMorphologicalOperation(image, selectedMorph, kernel, fast, binary, threshold,
+                    colorMode, border);
+            if (packed) {
+                effectiveBorder = BorderMode.CLAMP;
+            }
+            description = selectedMorph + ("Заполнение дыр".equals(selectedMorph) ? "" : ", " + selectedStruct
+                    + (selectedStruct.endsWith("(размер ядра)") ? " " + kernelSize : ""));
+            // Минимум и максимум точны при любом алгоритме; упакованная маска границу не использует
+            flags = packed ? "порог " + threshold : (binary ? "порог " + threshold + ", " : "") + border
+                    + ("Полутоновое".equals(colorMode) ? "" : ", цвет " + colorMode.toLowerCase());
+        }
+
+        return new Operation(passes, halo, effectiveBorder, description, description + " [" + flags + "]", function);
+    }
+
+    /** Нечётный размер ядра для изображения, уменьшенного в 1 / scale раз. */
+    private static int scaleKernelSize(int kernelSize, double scale) {
+        return Math.max(1, (int) Math.round(kernelSize * scale) | 1);
+    }
+
+    /**
+     * Запускает обработку в фоне; предыдущая, ещё не завершённая обработка отменяется.
+     * record — добавить результат в историю (при переходе по истории — нет).
+     */
+    private void startProcessing(ProcessingTask task, boolean record) {
+        regionPending = false;
+        if (currentWorker != null) {
+            currentWorker.cancelJob();
+        }
+
+        currentWorker = new ProcessingWorker(task, record);
+        currentWorker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressBar.setValue((Integer) e.getNewValue());
+                progressBar.setString(e.getNewValue() + "%");
+            }
+        });
+        progressBar.setValue(0);
+        progressBar.setString("0%");
+        cancelButton.setEnabled(true);
+        currentWorker.execute();
+    }
+
+    /**
+     * Обработка в фоновом потоке. Прогресс считается по строкам, готовым в ParallelExecutor,
+     * отмена проверяется перед каждой полосой, так что обработка останавливается посреди
+     * изображения, а не после него.
+     */
+    private class ProcessingWorker extends SwingWorker<BufferedImage, Void> {
+        private final ProcessingJob job;
+        private final ProcessingTask task;
+        private final boolean record;
+
+        ProcessingWorker(ProcessingTask task, boolean record) {
+            this.job = new ProcessingJob(task.passes, this::setProgress);
+            this.task = task;
+            this.record = record;
+        }
+
+        void cancelJob() {
+            job.cancel();
+            cancel(false);
+        }
+
+        @Override
+        protected BufferedImage doInBackground() {
+            return runInBackground(() -> job.run(task.work));
+        }
+
+        @Override
+        protected void done() {
+            // Результат обработки, которую заменила более новая, не показываем
+            if (currentWorker != this) {
+                return;
+            }
+            currentWorker = null;
+            cancelButton.setEnabled(false);
+
+            try {
+                processedImage = get();
+                resultVersion++;
+                if (processedImage == null) {
+                    // Обработка по частям: результат уже записан в файл
+                    processedViewer.clear("Результат записан в файл");
+                } else if (regionProcessor != null && processedImage == regionProcessor.canvas()) {
+                    // Холст области меняется на месте: перерисовываются только новые части
+                    Rectangle updated = regionProcessor.takeUpdated();
+                    processedViewer.updateRegion(processedImage, updated != null ? updated : new Rectangle());
+                } else {
+                    processedViewer.setImage(processedImage);
+                }
+                progressBar.setValue(100);
+                progressBar.setString("Готово");
+                if (task.key != null) {
+                    if (record) {
+                        recordHistory(task);
+                    } else {
+                        progressBar.setString("Шаг " + (historyIndex + 1) + " из " + history.size());
+                    }
+                    progressBar.setToolTipText(task.description);
+                }
+                if (regionPending && this == regionWorker) {
+                    // Область сдвинулась, пока считалось предыдущее положение
+                    regionPending = false;
+                    requestRegion();
+                }
+            } catch (CancellationException ex) {
+                progressBar.setString("Отменено");
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof CancellationException) {
+                    progressBar.setString("Отменено");
+                    return;
+                }
+                progressBar.setString("Ошибка");
+                JOptionPane.showMessageDialog(Main.this,
+                        "Ошибка обработки: " + ex.getCause(),
+                        "Ошибка", JOptionPane.ERROR_MESSAGE);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Обработка файла с диска в файл по частям (TiledProcessor) с текущими параметрами.
+     * Результат в окне не показывается: для изображений такого размера он пишется сразу в файл.
+     */
+    private class TiledProcessingListener implements ActionListener {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            JFileChooser inputChooser = new JFileChooser();
+            inputChooser.setFileFilter(new FileNameExtensionFilter(
+                    "Изображения", "jpg", "jpeg", "png", "bmp", "gif", "tif", "tiff", "pgm", "ppm"));
+            if (inputChooser.showOpenDialog(Main.this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+
+            JFileChooser outputChooser = new JFileChooser();
+            outputChooser.setFileFilter(new FileNameExtensionFilter(
+                    "PNG, TIFF, BMP, PGM/PPM", "png", "tif", "tiff", "bmp", "pgm", "ppm"));
+            if (outputChooser.showSaveDialog(Main.this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File output = outputChooser.getSelectedFile();
+            if (!output.getName().contains(".")) {
+                output = new File(output.getParentFile(), output.getName() + ".png");
+            }
+
+            // Морфология по каналам обрабатывает цветное изображение без перевода в полутоновое;
+            // бинарный режим, как и в памяти, всегда работает с полутоновым каналом
+            boolean grayscale = "Морфологическая обработка".equals(operationComboBox.getSelectedItem())
+                    && (binaryModeCheckBox.isSelected() || "Полутоновое".equals(colorModeComboBox.getSelectedItem()));
+            TiledProcessor processor;
+            try {
+                processor = new TiledProcessor(inputChooser.getSelectedFile(), capturePipeline(), grayscale);
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(Main.this,
+                        "Обработка по частям невозможна: " + ex.getMessage(),
+                        "Ошибка", JOptionPane.ERROR_MESSAGE);
+                return;
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(Main.this,
+                        "Ошибка загрузки изображения: " + ex.getMessage(),
+                        "Ошибка", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            File target = output;
+            startProcessing(new ProcessingTask(processor.stripCount(), () -> {
+                try (TiledProcessor tiled = processor) {
+                    tiled.writeTo(target, executor);
+                } catch (IOException ex) {
+                    target.delete();
+                    throw new UncheckedIOException(ex);
+                } catch (RuntimeException ex) {
+                    // Отмена или ошибка: недописанный файл не оставляем
+                    target.delete();
+                    throw ex;
+                }
+                return null;
+            }), false);
+        }
+    }
+
+    /** Текущие параметры как конвейер строк: обработка по частям работает только через RowPipeline. */
+    private RowPipeline capturePipeline() {
+        String selectedOperation = (String) operationComboBox.getSelectedItem();
+        int kernelSize = kernelSizeSlider.getValue();
+
+        if ("Низкочастотный фильтр".equals(selectedOperation)) {
+            String selectedFilter = (String) filterComboBox.getSelectedItem();
+            switch (selectedFilter) {
+                case "Гауссовский":
+                    return new RowPipeline(Collections.singletonList(
+                            RowPipeline.gaussian(kernelSize, sigmaSlider.getValue() / 10.0)));
+                case "Гауссовский (рекурсивный)":
+                    // Рекурсия по столбцу проходит всю высоту и в полосу с ореолом не помещается:
+                    // по частям считается явное ядро радиусом 3 sigma
+                    double sigma = sigmaSlider.getValue() / 10.0;
+                    return new RowPipeline(Collections.singletonList(
+                            RowPipeline.gaussian(2 * (int) Math.ceil(3 * sigma) + 1, sigma)));
+                case "Усредняющий":
+                    return new RowPipeline(Collections.singletonList(RowPipeline.average(kernelSize)));
+                default:
+                    return new RowPipeline(Collections.singletonList(RowPipeline.median(kernelSize)));
+            }
+        }
+        if ("Цепочка операций".equals(selectedOperation)) {
+            return RowPipeline.parse(pipelineField.getText());
+        }
+
+        boolean binary = binaryModeCheckBox.isSelected();
+        if (!binary && "По яркости".equals(colorModeComboBox.getSelectedItem())) {
+            // Конвейер строк работает с каждым каналом отдельно
+            throw new IllegalArgumentException("векторная морфология по частям не выполняется");
+        }
+        boolean[][] kernel = createStructuringElement((String) structElementComboBox.getSelectedItem(), kernelSize);
+        List<RowPipeline.Stage> stages = new ArrayList<>();
+        if (binary) {
+            // Морфология над каналом из 0 и 255 с повтором края совпадает с морфологией упакованной маски
+            stages.add(RowPipeline.threshold((Integer) thresholdSpinner.getValue()));
+        }
+        switch ((String) morphComboBox.getSelectedItem()) {
+            case "Эрозия":
+                stages.add(RowPipeline.erosion(kernel));
+                break;
+            case "Дилатация":
+                stages.add(RowPipeline.dilation(kernel));
+                break;
+            case "Открытие":
+                stages.addAll(Arrays.asList(RowPipeline.erosion(kernel), RowPipeline.dilation(kernel)));
+                break;
+            case "Закрытие":
+                stages.addAll(Arrays.asList(RowPipeline.dilation(kernel), RowPipeline.erosion(kernel)));
+                break;
+            default:
+                // Разность с исходным и реконструкция — не цепочка этапов над строками
+                throw new IllegalArgumentException("операция «" + morphComboBox.getSelectedItem()
+                        + "» по частям не выполняется");
+        }
+        return new RowPipeline(stages);
     }
 
     private class SaveImageListener implements ActionListener {
@@ -301,10 +1074,12 @@ public class Main extends JFrame {
             int size = kernelSizeSlider.getValue();
             // Гауссовский фильтр требует нечетный размер ядра
             if (size % 2 == 0) {
-                size++;
-                kernelSizeSlider.setValue(size);
+                // setValue вызовет этот же обработчик уже с нечётным значением
+                kernelSizeSlider.setValue(size + 1);
+                return;
             }
             kernelSizeLabel.setText(size + "x" + size);
+            parametersChanged(kernelSizeSlider.getValueIsAdjusting());
         }
     }
 
@@ -313,250 +1088,527 @@ public class Main extends JFrame {
         public void stateChanged(ChangeEvent e) {
             double sigma = sigmaSlider.getValue() / 10.0;
             sigmaLabel.setText(String.format("%.1f", sigma));
+            parametersChanged(sigmaSlider.getValueIsAdjusting());
         }
     }
 
-    private void displayImage(BufferedImage image, JLabel label) {
-        if (image != null) {
-            int displayWidth = Math.min(400, image.getWidth());
-            int displayHeight = Math.min(400, image.getHeight());
+    private class ThreadCountListener implements ChangeListener {
+        @Override
+        public void stateChanged(ChangeEvent e) {
+            int threads = (Integer) threadCountSpinner.getValue();
+            if (threads != executor.getParallelism()) {
+                synchronized (retiredExecutors) {
+                    retiredExecutors.add(executor);
+                    executor = new ParallelExecutor(threads);
+                    shutdownRetiredExecutors();
+                }
+            }
+        }
+    }
 
-            ImageIcon icon = new ImageIcon(image.getScaledInstance(
-                    displayWidth, displayHeight, Image.SCALE_SMOOTH));
-            label.setIcon(icon);
-            label.setText("");
+    /**
+     * В режиме предпросмотра каждое изменение слайдера обрабатывает уменьшенную копию,
+     * а после отпускания слайдера запускается полноразмерная обработка.
+     */
+    private void parametersChanged(boolean adjusting) {
+        // Обработка области достаточно быстра, чтобы заменить предпросмотр на уменьшенной копии
+        if (isRegionMode()) {
+            requestRegion();
+            return;
+        }
+        if (!previewCheckBox.isSelected() || originalImage == null) {
+            return;
+        }
+
+        requestPreview();
+        if (!adjusting) {
+            applyProcessing();
         }
     }
 
-    // Реализация низкочастотных фильтров
-    private BufferedImage applyLowPassFilter(BufferedImage image, String filterType) {
-        int kernelSize = kernelSizeSlider.getValue();
+    /**
+     * Ставит предпросмотр с текущими параметрами в очередь из одного места: пока идёт
+     * предыдущий, новые запросы только заменяют ожидающий, так что считаются лишь
+     * последние параметры.
+     */
+    private void requestPreview() {
+        try {
+            pendingPreview = captureTask(previewProxy, previewScale).work;
+        } catch (IllegalArgumentException ex) {
+            return;
+        }
 
-        switch (filterType) {
-            case "Гауссовский":
-                return applyGaussianFilter(image, kernelSize);
-            case "Усредняющий":
-                return applyAverageFilter(image, kernelSize);
-            case "Медианный":
-                return applyMedianFilter(image, kernelSize);
-            default:
-                return image;
+        if (previewWorker == null) {
+            startPreview();
         }
     }
 
-    private BufferedImage applyGaussianFilter(BufferedImage image, int kernelSize) {
-        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-        double sigma = sigmaSlider.getValue() / 10.0;
+    private void startPreview() {
+        Supplier<BufferedImage> work = pendingPreview;
+        int version = resultVersion;
+        pendingPreview = null;
 
-        // Создание гауссовского ядра
-        double[][] kernel = createGaussianKernel(kernelSize, sigma);
+        previewWorker = new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() {
+                return runInBackground(work);
+            }
 
-        applyConvolution(image, result, kernel);
-        return result;
-    }
+            @Override
+            protected void done() {
+                previewWorker = null;
+                try {
+                    // Полноразмерный результат, показанный после запуска предпросмотра, не затираем
+                    BufferedImage preview = get();
+                    if (version == resultVersion) {
+                        processedViewer.setPreview(preview);
+                    }
+                } catch (ExecutionException | InterruptedException ex) {
+                    // Ошибки предпросмотра не показываем: о них сообщит полноразмерная обработка
+                }
 
-    private double[][] createGaussianKernel(int size, double sigma) {
-        double[][] kernel = new double[size][size];
-        double sum = 0;
-        int center = size / 2;
+                if (pendingPreview != null) {
+                    startPreview();
+                }
+            }
+        };
+        previewWorker.execute();
+    }
 
-        for (int x = -center; x <= center; x++) {
-            for (int y = -center; y <= center; y++) {
-                double value = (1.0 / (2 * Math.PI * sigma * sigma)) *
-                        Math.exp(-(x * x + y * y) / (2 * sigma * sigma));
-                kernel[x + center][y + center] = value;
-                sum += value;
+    /**
+     * Выполняет фоновую задачу, пока её пулы потоков не закрыты: пулы, заменённые
+     * за время выполнения, закрывает последняя завершившаяся задача.
+     */
+    private <T> T runInBackground(Supplier<T> work) {
+        synchronized (retiredExecutors) {
+            runningTasks++;
+        }
+        try {
+            return work.get();
+        } finally {
+            synchronized (retiredExecutors) {
+                runningTasks--;
+                shutdownRetiredExecutors();
             }
         }
+    }
 
-        // Нормализация
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                kernel[i][j] /= sum;
+    /** Закрывает заменённые пулы, если ни одна фоновая задача не выполняется; под блокировкой. */
+    private void shutdownRetiredExecutors() {
+        if (runningTasks == 0) {
+            for (ParallelExecutor retired : retiredExecutors) {
+                retired.shutdown();
             }
+            retiredExecutors.clear();
         }
-
-        return kernel;
     }
 
-    private BufferedImage applyAverageFilter(BufferedImage image, int kernelSize) {
-        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-        double[][] kernel = new double[kernelSize][kernelSize];
-        double value = 1.0 / (kernelSize * kernelSize);
+    /** Уменьшенная копия исходного изображения, не больше PREVIEW_SIZE по большей стороне. */
+    private void createPreviewProxy() {
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
+        previewScale = Math.min(1.0, (double) PREVIEW_SIZE / Math.max(width, height));
+        int proxyWidth = Math.max(1, (int) Math.round(width * previewScale));
+        int proxyHeight = Math.max(1, (int) Math.round(height * previewScale));
 
-        for (int i = 0; i < kernelSize; i++) {
-            for (int j = 0; j < kernelSize; j++) {
-                kernel[i][j] = value;
-            }
-        }
+        // Полутоновое изображение остаётся полутоновым, остальные — TYPE_INT_RGB
+        previewProxy = ImageViewer.downscale(originalImage, proxyWidth, proxyHeight);
+    }
 
-        applyConvolution(image, result, kernel);
-        return result;
+    // Реализация низкочастотных фильтров
+    private BufferedImage applyLowPassFilter(BufferedImage image, String filterType, int kernelSize, double sigma,
+                                             boolean fast, boolean fixed, BorderMode border) {
+        switch (filterType) {
+            case "Гауссовский":
+                return applyGaussianFilter(image, kernelSize, sigma, fast, fixed, border);
+            case "Гауссовский (рекурсивный)":
+                return applyRecursiveGaussianFilter(image, sigma);
+            case "Усредняющий":
+                return applyAverageFilter(image, kernelSize, fast, fixed, border);
+            case "Медианный":
+                return applyMedianFilter(image, kernelSize, fast, border);
+            default:
+                return image;
+        }
     }
 
-    private BufferedImage applyMedianFilter(BufferedImage image, int kernelSize) {
-        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-        int radius = kernelSize / 2;
+    private BufferedImage applyGaussianFilter(BufferedImage image, int kernelSize, double sigma, boolean fast,
+                                              boolean fixed, BorderMode border) {
+        PixelBuffer src = BufferPool.fromImage(image);
+        PixelBuffer dst = BufferPool.borrowCompatible(src);
+
+        if (fixed) {
+            // Целочисленный путь выбирается ради воспроизводимости, поэтому БПФ здесь не используется
+            if (fast) {
+                int[] kernel = KernelCache.gaussian1DFixed(kernelSize, sigma);
+                executor.forEachBand(src.channels(), src.height, kernelSize / 2, (c, y0, y1) ->
+                        Convolution.separableFixed(src.planes[c], dst.planes[c], src.width, src.height, kernel,
+                                border, y0, y1));
+            } else {
+                applyFixedConvolution(src, dst, KernelCache.gaussian2DFixed(kernelSize, sigma), border);
+            }
+            return toImage(dst, image.getType(), src, dst);
+        }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int[] redValues = new int[kernelSize * kernelSize];
-                int[] greenValues = new int[kernelSize * kernelSize];
-                int[] blueValues = new int[kernelSize * kernelSize];
-                int count = 0;
+        if (FftConvolution.isPreferred(kernelSize, fast)) {
+            // Большое ядро: БПФ дешевле и сепарабельной, и тем более прямой свёртки
+            applyFftConvolution(src, dst, KernelCache.gaussian2D(kernelSize, sigma), border);
+            return toImage(dst, image.getType(), src, dst);
+        }
 
-                for (int ky = -radius; ky <= radius; ky++) {
-                    for (int kx = -radius; kx <= radius; kx++) {
-                        int px = Math.min(Math.max(x + kx, 0), image.getWidth() - 1);
-                        int py = Math.min(Math.max(y + ky, 0), image.getHeight() - 1);
+        if (fast) {
+            // Гауссовское ядро сепарабельно: два одномерных прохода вместо двумерной свёртки
+            double[] kernel = KernelCache.gaussian1D(kernelSize, sigma);
+            executor.forEachBand(src.channels(), src.height, kernelSize / 2, (c, y0, y1) ->
+                    Convolution.separable(src.planes[c], dst.planes[c], src.width, src.height, kernel, border, y0, y1));
+            return toImage(dst, image.getType(), src, dst);
+        }
 
-                        int rgb = image.getRGB(px, py);
-                        redValues[count] = (rgb >> 16) & 0xFF;
-                        greenValues[count] = (rgb >> 8) & 0xFF;
-                        blueValues[count] = rgb & 0xFF;
-                        count++;
-                    }
-                }
+        // Создание гауссовского ядра
+        double[][] kernel = KernelCache.gaussian2D(kernelSize, sigma);
 
-                Arrays.sort(redValues, 0, count);
-                Arrays.sort(greenValues, 0, count);
-                Arrays.sort(blueValues, 0, count);
+        applyConvolution(src, dst, kernel, border);
+        return toImage(dst, image.getType(), src, dst);
+    }
 
-                int medianIndex = count / 2;
-                int medianRGB = (redValues[medianIndex] << 16) |
-                        (greenValues[medianIndex] << 8) |
-                        blueValues[medianIndex];
+    private BufferedImage applyRecursiveGaussianFilter(BufferedImage image, double sigma) {
+        PixelBuffer src = BufferPool.fromImage(image);
+        PixelBuffer dst = BufferPool.borrowCompatible(src);
+        RecursiveGaussian.apply(executor, src, dst, sigma);
+        return toImage(dst, image.getType(), src, dst);
+    }
 
-                result.setRGB(x, y, medianRGB);
-            }
+    private BufferedImage applyAverageFilter(BufferedImage image, int kernelSize, boolean fast, boolean fixed,
+                                             BorderMode border) {
+        PixelBuffer src = BufferPool.fromImage(image);
+        PixelBuffer dst = BufferPool.borrowCompatible(src);
+
+        if (fast || fixed) {
+            // Все веса одинаковы: скользящие суммы дают стоимость, не зависящую от размера ядра.
+            // Суммы целые, поэтому в режиме Q16 достаточно округлить среднее — это точное
+            // округлённое среднее окна. Ядро в Q16 для этого не годится: 65536 / k^2 не делится
+            // нацело, и веса ядра неизбежно различаются на единицу
+            executor.forEachBand(src.channels(), src.height, kernelSize / 2, (c, y0, y1) ->
+                    BoxFilter.apply(src.planes[c], dst.planes[c], src.width, src.height, kernelSize, border,
+                            y0, y1, fixed));
+            return toImage(dst, image.getType(), src, dst);
         }
 
-        return result;
+        double[][] kernel = KernelCache.box2D(kernelSize);
+        if (FftConvolution.isPreferred(kernelSize, false)) {
+            applyFftConvolution(src, dst, kernel, border);
+        } else {
+            applyConvolution(src, dst, kernel, border);
+        }
+        return toImage(dst, image.getType(), src, dst);
     }
 
-    private void applyConvolution(BufferedImage src, BufferedImage dst, double[][] kernel) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-        int kernelSize = kernel.length;
-        int radius = kernelSize / 2;
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                double red = 0, green = 0, blue = 0;
+    private BufferedImage applyMedianFilter(BufferedImage image, int kernelSize, boolean fast, BorderMode border) {
+        PixelBuffer src = BufferPool.fromImage(image);
+        PixelBuffer dst = BufferPool.borrowCompatible(src);
+
+        if (fast) {
+            // Скользящие гистограммы вместо сортировки окна для каждого пикселя
+            executor.forEachBand(src.channels(), src.height, kernelSize / 2, (c, y0, y1) ->
+                    MedianFilter.apply(src.planes[c], dst.planes[c], src.width, src.height, kernelSize, border, y0, y1));
+        } else {
+            executor.forEachBand(src.channels(), src.height, kernelSize / 2, (c, y0, y1) ->
+                    MedianFilter.sorting(src.planes[c], dst.planes[c], src.width, src.height, kernelSize, border,
+                        y0, y1));
+        }
 
-                for (int ky = -radius; ky <= radius; ky++) {
-                    for (int kx = -radius; kx <= radius; kx++) {
-                        int px = Math.min(Math.max(x + kx, 0), width - 1);
-                        int py = Math.min(Math.max(y + ky, 0), height - 1);
+        return toImage(dst, image.getType(), src, dst);
+    }
 
-                        int rgb = src.getRGB(px, py);
-                        double weight = kernel[ky + radius][kx + radius];
+    private void applyConvolution(PixelBuffer src, PixelBuffer dst, double[][] kernel, BorderMode border) {
+        executor.forEachBand(src.channels(), src.height, kernel.length / 2, (c, y0, y1) ->
+                Convolution.direct(src.planes[c], dst.planes[c], src.width, src.height, kernel, border, y0, y1));
+    }
 
-                        red += ((rgb >> 16) & 0xFF) * weight;
-                        green += ((rgb >> 8) & 0xFF) * weight;
-                        blue += (rgb & 0xFF) * weight;
-                    }
-                }
+    private void applyFixedConvolution(PixelBuffer src, PixelBuffer dst, int[][] kernel, BorderMode border) {
+        executor.forEachBand(src.channels(), src.height, kernel.length / 2, (c, y0, y1) ->
+                Convolution.directFixed(src.planes[c], dst.planes[c], src.width, src.height, kernel, border, y0, y1));
+    }
 
-                int newRGB = ((Math.min(Math.max((int) red, 0), 255) << 16) |
-                        (Math.min(Math.max((int) green, 0), 255) << 8) |
-                        Math.min(Math.max((int) blue, 0), 255));
+    private void applyFftConvolution(PixelBuffer src, PixelBuffer dst, double[][] kernel, BorderMode border) {
+        FftConvolution fft = new FftConvolution(kernel);
+        // Полоса не ниже плитки БПФ, иначе преобразование N x N тратится на меньшее число строк
+        int halo = Math.max(kernel.length / 2, fft.tileRows() / 4);
+        executor.forEachBand(src.channels(), src.height, halo, (c, y0, y1) ->
+                fft.apply(src.planes[c], dst.planes[c], src.width, src.height, border, y0, y1));
+    }
 
-                dst.setRGB(x, y, newRGB);
-            }
-        }
+    /**
+     * Записывает результат в новое изображение типа type и возвращает буферы обработки
+     * в BufferPool. Тип берётся у исходного изображения, уже приведённого ImageFormat.normalize,
+     * поэтому он не TYPE_CUSTOM. Само изображение результата остаётся у окна и в пул не попадает.
+     */
+    private BufferedImage toImage(PixelBuffer buffer, int type, PixelBuffer... finished) {
+        BufferedImage result = new BufferedImage(buffer.width, buffer.height, type);
+        buffer.writeTo(result);
+        BufferPool.release(finished);
+        return result;
     }
 
     // Реализация морфологических операций
-    private BufferedImage applyMorphologicalOperation(BufferedImage image, String operation, String structElement) {
-        // Преобразуем в полутоновое для морфологических операций
-        BufferedImage grayImage = convertToGrayScale(image);
+    private BufferedImage applyMorphologicalOperation(BufferedImage image, String operation, boolean[][] kernel,
+                                                      boolean fast, boolean binary, int threshold,
+                                                      String colorMode, BorderMode border) {
+        // Полутоновый режим приводит изображение к одному каналу, цветные работают с каналами R, G, B
+        PixelBuffer gray = binary || "Полутоновое".equals(colorMode)
+                ? convertToGrayScale(image) : BufferPool.fromImage(image);
+        // Векторный порядок имеет смысл только для трёх каналов
+        boolean vector = "По яркости".equals(colorMode) && gray.channels() == 3;
+        int type = gray.channels() == 1 ? BufferedImage.TYPE_BYTE_GRAY : image.getType();
+
+        if (binary) {
+            if (isMaskOperation(operation)) {
+                return applyBinaryMorphology(gray, operation, kernel, threshold);
+            }
+            // Остальные операции считаются обычным путём над каналом из 0 и 255
+            BinaryMask.threshold(gray.planes[0], gray.width, gray.height, threshold).toPlane(gray.planes[0]);
+        }
 
+        PixelBuffer dst = BufferPool.borrowCompatible(gray);
         switch (operation) {
             case "Эрозия":
-                return erosion(grayImage, structElement);
+                erosion(gray, dst, kernel, fast, vector, border);
+                break;
             case "Дилатация":
-                return dilation(grayImage, structElement);
+                dilation(gray, dst, kernel, fast, vector, border);
+                break;
             case "Открытие":
-                BufferedImage eroded = erosion(grayImage, structElement);
-                return dilation(eroded, structElement);
+                opening(gray, dst, kernel, fast, vector, border);
+                break;
             case "Закрытие":
-                BufferedImage dilated = dilation(grayImage, structElement);
-                return erosion(dilated, structElement);
+                closing(gray, dst, kernel, fast, vector, border);
+                break;
+            case "Градиент": {
+                PixelBuffer eroded = BufferPool.borrowCompatible(gray);
+                dilation(gray, dst, kernel, fast, vector, border);
+                erosion(gray, eroded, kernel, fast, vector, border);
+                difference(dst, eroded, dst);
+                BufferPool.release(eroded);
+                break;
+            }
+            case "Белый top-hat": {
+                // Светлые детали меньше элемента: то, что убирает открытие
+                PixelBuffer opened = BufferPool.borrowCompatible(gray);
+                opening(gray, opened, kernel, fast, vector, border);
+                difference(gray, opened, dst);
+                BufferPool.release(opened);
+                break;
+            }
+            case "Чёрный top-hat": {
+                PixelBuffer closed = BufferPool.borrowCompatible(gray);
+                closing(gray, closed, kernel, fast, vector, border);
+                difference(closed, gray, dst);
+                BufferPool.release(closed);
+                break;
+            }
+            case "Реконструкция дилатацией":
+                // Открытие реконструкцией: объекты, пережившие эрозию, восстанавливаются
+                // с точной формой, а не формой элемента
+                erosion(gray, dst, kernel, fast, vector, border);
+                Reconstruction.byDilation(dst.planes, gray.planes, gray.width, gray.height);
+                break;
+            case "Реконструкция эрозией":
+                dilation(gray, dst, kernel, fast, vector, border);
+                Reconstruction.byErosion(dst.planes, gray.planes, gray.width, gray.height);
+                break;
+            case "Заполнение дыр":
+                Reconstruction.fillHoles(gray.planes, dst.planes, gray.width, gray.height);
+                break;
             default:
-                return grayImage;
+                return toImage(gray, type, gray, dst);
         }
+        return toImage(dst, type, gray, dst);
     }
 
-    private BufferedImage convertToGrayScale(BufferedImage image) {
-        BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
-        Graphics g = gray.getGraphics();
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
-        return gray;
+    /** Операции, которые бинарный режим выполняет над упакованной маской. */
+    private static boolean isMaskOperation(String operation) {
+        return "Эрозия".equals(operation) || "Дилатация".equals(operation)
+                || "Открытие".equals(operation) || "Закрытие".equals(operation);
     }
 
-    private BufferedImage erosion(BufferedImage image, String structElement) {
-        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-        boolean[][] kernel = createStructuringElement(structElement);
-        int size = kernel.length;
-        int radius = size / 2;
-
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int minValue = 255;
+    private void opening(PixelBuffer src, PixelBuffer dst, boolean[][] kernel, boolean fast, boolean vector,
+                         BorderMode border) {
+        if (vector) {
+            vectorMorphology(src, dst, kernel, border, true, false);
+            return;
+        }
+        if (fast && border == BorderMode.CLAMP) {
+            // Эрозия и дилатация за один проход без промежуточного изображения
+            applyPipeline(src, dst, new RowPipeline(Arrays.asList(
+                    RowPipeline.erosion(kernel), RowPipeline.dilation(kernel))));
+            return;
+        }
+        PixelBuffer eroded = BufferPool.borrowCompatible(src);
+        erosion(src, eroded, kernel, fast, false, border);
+        dilation(eroded, dst, kernel, fast, false, border);
+        BufferPool.release(eroded);
+    }
 
-                for (int ky = -radius; ky <= radius; ky++) {
-                    for (int kx = -radius; kx <= radius; kx++) {
-                        if (kernel[ky + radius][kx + radius]) {
-                            int px = Math.min(Math.max(x + kx, 0), image.getWidth() - 1);
-                            int py = Math.min(Math.max(y + ky, 0), image.getHeight() - 1);
+    private void closing(PixelBuffer src, PixelBuffer dst, boolean[][] kernel, boolean fast, boolean vector,
+                         BorderMode border) {
+        if (vector) {
+            vectorMorphology(src, dst, kernel, border, false, true);
+            return;
+        }
+        if (fast && border == BorderMode.CLAMP) {
+            applyPipeline(src, dst, new RowPipeline(Arrays.asList(
+                    RowPipeline.dilation(kernel), RowPipeline.erosion(kernel))));
+            return;
+        }
+        PixelBuffer dilated = BufferPool.borrowCompatible(src);
+        dilation(src, dilated, kernel, fast, false, border);
+        erosion(dilated, dst, kernel, fast, false, border);
+        BufferPool.release(dilated);
+    }
 
-                            int gray = image.getRGB(px, py) & 0xFF;
-                            minValue = Math.min(minValue, gray);
-                        }
-                    }
+    /**
+     * Векторная морфология по яркости: каналы упаковываются в ключи ColorMorphology, шаги
+     * (true — эрозия, false — дилатация) выполняются над ключами, и результат распаковывается
+     * обратно — на открытие и закрытие приходится одна упаковка и одна распаковка.
+     * Полноразмерные массивы ключей берутся из BufferPool.
+     */
+    private void vectorMorphology(PixelBuffer src, PixelBuffer dst, boolean[][] kernel, BorderMode border,
+                                  boolean... erosionSteps) {
+        int[][] rectangles = Morphology.decompose(kernel);
+        int width = src.width, height = src.height;
+        int[] keys = BufferPool.borrowInts(width * height);
+        int[] spare = BufferPool.borrowInts(width * height);
+        executor.forEachBand(1, height, 0, (c, y0, y1) -> ColorMorphology.toKeys(src, keys, y0, y1));
+        int[] current = keys;
+        for (boolean erosion : erosionSteps) {
+            int[] in = current, out = current == keys ? spare : keys;
+            executor.forEachBand(1, height, kernel.length / 2, (c, y0, y1) -> {
+                if (erosion) {
+                    ColorMorphology.erode(in, out, width, height, rectangles, border, y0, y1);
+                } else {
+                    ColorMorphology.dilate(in, out, width, height, rectangles, border, y0, y1);
                 }
-
-                int newRGB = (minValue << 16) | (minValue << 8) | minValue;
-                result.setRGB(x, y, newRGB);
-            }
+            });
+            current = out;
         }
+        int[] result = current;
+        executor.forEachBand(1, height, 0, (c, y0, y1) -> ColorMorphology.fromKeys(result, dst, y0, y1));
+        BufferPool.releaseInts(keys, spare);
+    }
 
-        return result;
+    /** dst = a - b (не меньше нуля) в каждом канале, полосами строк. */
+    private void difference(PixelBuffer a, PixelBuffer b, PixelBuffer dst) {
+        executor.forEachBand(a.channels(), a.height, 0, (c, y0, y1) ->
+                Morphology.difference(a.planes[c], b.planes[c], dst.planes[c], a.width, y0, y1));
     }
 
-    private BufferedImage dilation(BufferedImage image, String structElement) {
-        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-        boolean[][] kernel = createStructuringElement(structElement);
-        int size = kernel.length;
-        int radius = size / 2;
+    /**
+     * Цепочка операций над каждым каналом изображения: этапы обмениваются строками
+     * через кольцевые буферы, промежуточные изображения не создаются.
+     */
+    private BufferedImage applyPipeline(BufferedImage image, RowPipeline pipeline) {
+        PixelBuffer src = BufferPool.fromImage(image);
+        PixelBuffer dst = BufferPool.borrowCompatible(src);
+        applyPipeline(src, dst, pipeline);
+        return toImage(dst, image.getType(), src, dst);
+    }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int maxValue = 0;
+    private void applyPipeline(PixelBuffer src, PixelBuffer dst, RowPipeline pipeline) {
+        executor.forEachBand(src.channels(), src.height, pipeline.radius(), (c, y0, y1) ->
+                pipeline.run(src.planes[c], dst.planes[c], src.width, src.height, y0, y1));
+    }
 
-                for (int ky = -radius; ky <= radius; ky++) {
-                    for (int kx = -radius; kx <= radius; kx++) {
-                        if (kernel[ky + radius][kx + radius]) {
-                            int px = Math.min(Math.max(x + kx, 0), image.getWidth() - 1);
-                            int py = Math.min(Math.max(y + ky, 0), image.getHeight() - 1);
+    /**
+     * Морфология над бинарной маской: изображение бинаризуется порогом и упаковывается
+     * по 64 пикселя в long, все шаги операции выполняются над масками.
+     */
+    private BufferedImage applyBinaryMorphology(PixelBuffer gray, String operation, boolean[][] kernel,
+                                                int threshold) {
+        int[][] rectangles = Morphology.decompose(kernel);
+        int radius = kernel.length / 2;
+        BinaryMask mask = BinaryMask.threshold(gray.planes[0], gray.width, gray.height, threshold);
 
-                            int gray = image.getRGB(px, py) & 0xFF;
-                            maxValue = Math.max(maxValue, gray);
-                        }
-                    }
-                }
+        switch (operation) {
+            case "Эрозия":
+                mask = binaryStep(mask, rectangles, radius, true);
+                break;
+            case "Дилатация":
+                mask = binaryStep(mask, rectangles, radius, false);
+                break;
+            case "Открытие":
+                mask = binaryStep(binaryStep(mask, rectangles, radius, true), rectangles, radius, false);
+                break;
+            case "Закрытие":
+                mask = binaryStep(binaryStep(mask, rectangles, radius, false), rectangles, radius, true);
+                break;
+            default:
+                break;
+        }
 
-                int newRGB = (maxValue << 16) | (maxValue << 8) | maxValue;
-                result.setRGB(x, y, newRGB);
+        mask.toPlane(gray.planes[0]);
+        return toImage(gray, BufferedImage.TYPE_BYTE_GRAY, gray);
+    }
+
+    private BinaryMask binaryStep(BinaryMask src, int[][] rectangles, int radius, boolean erosion) {
+        BinaryMask dst = src.createCompatible();
+        executor.forEachBand(1, src.height, radius, (c, y0, y1) -> {
+            if (erosion) {
+                BinaryMask.erode(src, dst, rectangles, y0, y1);
+            } else {
+                BinaryMask.dilate(src, dst, rectangles, y0, y1);
             }
+        });
+        return dst;
+    }
+
+    /** Полутоновое изображение в буфере из пула; уже полутоновое копируется без перерисовки. */
+    private PixelBuffer convertToGrayScale(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            return BufferPool.fromImage(image);
+        }
+        PixelBuffer gray = BufferPool.borrow(image.getWidth(), image.getHeight(), 1);
+        gray.drawGray(image);
+        return gray;
+    }
+
+    private void erosion(PixelBuffer src, PixelBuffer dst, boolean[][] kernel, boolean fast, boolean vector,
+                         BorderMode border) {
+        if (vector) {
+            vectorMorphology(src, dst, kernel, border, true);
+            return;
+        }
+        if (fast) {
+            // Элемент раскладывается на прямоугольники, каждый считается за ~6 сравнений на пиксель
+            int[][] rectangles = Morphology.decompose(kernel);
+            executor.forEachBand(src.channels(), src.height, kernel.length / 2, (c, y0, y1) ->
+                    Morphology.erodeDecomposed(src.planes[c], dst.planes[c], src.width, src.height, rectangles,
+                            border, y0, y1));
+            return;
         }
 
-        return result;
+        executor.forEachBand(src.channels(), src.height, kernel.length / 2, (c, y0, y1) ->
+                Morphology.erode(src.planes[c], dst.planes[c], src.width, src.height, kernel, border, y0, y1));
     }
 
-    private boolean[][] createStructuringElement(String type) {
+    private void dilation(PixelBuffer src, PixelBuffer dst, boolean[][] kernel, boolean fast, boolean vector,
+                          BorderMode border) {
+        if (vector) {
+            vectorMorphology(src, dst, kernel, border, false);
+            return;
+        }
+        if (fast) {
+            int[][] rectangles = Morphology.decompose(kernel);
+            executor.forEachBand(src.channels(), src.height, kernel.length / 2, (c, y0, y1) ->
+                    Morphology.dilateDecomposed(src.planes[c], dst.planes[c], src.width, src.height, rectangles,
+                            border, y0, y1));
+            return;
+        }
+
+        executor.forEachBand(src.channels(), src.height, kernel.length / 2, (c, y0, y1) ->
+                Morphology.dilate(src.planes[c], dst.planes[c], src.width, src.height, kernel, border, y0, y1));
+    }
+
+    private boolean[][] createStructuringElement(String type, int kernelSize) {
         switch (type) {
             case "Квадрат 3x3":
                 return new boolean[][]{
@@ -590,12 +1642,24 @@ public class Main extends JFrame {
                         {false, false, true,  false, false},
                         {false, false, true,  false, false}
                 };
+            case "Квадрат (размер ядра)":
+                return Morphology.createElement("square", kernelSize);
+            case "Круг (размер ядра)":
+                return Morphology.createElement("disk", kernelSize);
+            case "Крест (размер ядра)":
+                return Morphology.createElement("cross", kernelSize);
             default:
                 return new boolean[3][3]; // Квадрат 3x3 по умолчанию
         }
     }
 
     public static void main(String[] args) {
+        // Пакетный режим без окна: java Main --batch ...
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchProcessor.run(args));
+        }
+
         SwingUtilities.invokeLater(() -> {
             new Main();
         });
@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+/**
+ * Медианный фильтр на скользящих гистограммах (алгоритм Perreault–Hébert).
+ * Для каждого столбца хранится гистограмма его вертикального окна, гистограмма ядра
+ * получается сложением гистограмм столбцов. Гистограммы двухуровневые: 16 грубых корзин
+ * обновляются на каждом шаге, 256 точных — только для корзины, в которой лежит медиана,
+ * и только при обращении к ней. Стоимость на пиксель почти не зависит от размера ядра,
+ * во внутреннем цикле нет выделений памяти.
+ */
+final class MedianFilter {
+
+    private static final int BINS = 256;
+    private static final int COARSE_BINS = 16;
+    private static final int FINE_PER_COARSE = BINS / COARSE_BINS;
+
+    private MedianFilter() {
+    }
+
+    /**
+     * Медианный фильтр строк [y0, y1) канала с окном size x size сортировкой окна для каждого пикселя:
+     * O(k^2 log k) на пиксель. Медиана — элемент с индексом size * size / 2
+     * в отсортированном окне, граница — по правилу border.
+     */
+    static void sorting(byte[] src, byte[] dst, int width, int height, int size, BorderMode border,
+                        int y0, int y1) {
+        int radius = size / 2;
+        BorderMode.PaddedRows rows = border.paddedRows(src, width, height, radius, size);
+        int[] values = new int[size * size];
+
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0; x < width; x++) {
+                int count = 0;
+
+                // Элемент x + kx дополненной строки — пиксель x + kx - radius канала
+                for (int ky = -radius; ky <= radius; ky++) {
+                    byte[] row = rows.row(y + ky);
+                    for (int kx = 0; kx < size; kx++) {
+                        values[count++] = row[x + kx] & 0xFF;
+                    }
+                }
+
+                Arrays.sort(values, 0, count);
+                dst[y * width + x] = (byte) values[count / 2];
+            }
+        }
+    }
+
+    /**
+     * Медианный фильтр строк [y0, y1) канала на скользящих гистограммах с окном size x size.
+     * Результат совпадает побитно с sorting.
+     */
+    static void apply(byte[] src, byte[] dst, int width, int height, int size, BorderMode border, int y0, int y1) {
+        int radius = size / 2;
+        Window window = new Window(width, size, border);
+        byte[] constantRow = new byte[width];
+        Arrays.fill(constantRow, (byte) BorderMode.CONSTANT_VALUE);
+
+        for (int y = y0; y < y1; y++) {
+            // Сдвигаем вертикальное окно каждого столбца на строку вниз
+            if (y == y0) {
+                for (int ky = -radius; ky <= radius; ky++) {
+                    int row = border.index(y + ky, height);
+                    window.addRow(row < 0 ? constantRow : src, Math.max(row, 0) * width, 1);
+                }
+            } else {
+                int outgoing = border.index(y - 1 - radius, height);
+                int incoming = border.index(y + radius, height);
+                if (outgoing != incoming) {
+                    window.addRow(outgoing < 0 ? constantRow : src, Math.max(outgoing, 0) * width, -1);
+                    window.addRow(incoming < 0 ? constantRow : src, Math.max(incoming, 0) * width, 1);
+                }
+            }
+
+            window.filterRow(dst, y * width);
+        }
+    }
+
+    /**
+     * Состояние скользящего окна: гистограммы столбцов по текущим size строкам и гистограмма ядра.
+     * Строки добавляются и убираются вызывающим кодом, что позволяет использовать окно
+     * и для целого канала, и в потоковом конвейере строк. Столбцы за границей берутся
+     * по правилу border; для CONSTANT это отдельный столбец с номером width, все size
+     * значений которого равны CONSTANT_VALUE.
+     */
+    static final class Window {
+        private final int width;
+        private final int radius;
+        private final int size;
+        private final BorderMode border;
+        private final int medianIndex;
+        private final int[] columnFine;
+        private final int[] columnCoarse;
+        private final int[] kernelFine = new int[BINS];
+        private final int[] kernelCoarse = new int[COARSE_BINS];
+        private final int[] fineStamp = new int[COARSE_BINS];
+
+        Window(int width, int size, BorderMode border) {
+            this.width = width;
+            this.radius = size / 2;
+            this.size = size;
+            this.border = border;
+            this.medianIndex = size * size / 2;
+            this.columnFine = new int[(width + 1) * BINS];
+            this.columnCoarse = new int[(width + 1) * COARSE_BINS];
+            clear();
+        }
+
+        void clear() {
+            Arrays.fill(columnFine, 0);
+            Arrays.fill(columnCoarse, 0);
+            columnFine[width * BINS + BorderMode.CONSTANT_VALUE] = size;
+            columnCoarse[width * COARSE_BINS + BorderMode.CONSTANT_VALUE / FINE_PER_COARSE] = size;
+        }
+
+        /** Номер столбца гистограмм для позиции x; внутри строки — сам x, без вызова border. */
+        private int column(int x) {
+            if (x >= 0 && x < width) {
+                return x;
+            }
+            int index = border.index(x, width);
+            return index < 0 ? width : index;
+        }
+
+        /** Добавляет (sign = 1) или убирает (sign = -1) строку data[offset..] из гистограмм столбцов. */
+        void addRow(byte[] data, int offset, int sign) {
+            for (int x = 0; x < width; x++) {
+                int value = data[offset + x] & 0xFF;
+                columnFine[x * BINS + value] += sign;
+                columnCoarse[x * COARSE_BINS + value / FINE_PER_COARSE] += sign;
+            }
+        }
+
+        /** Медианы всех позиций строки для текущего содержимого гистограмм столбцов. */
+        void filterRow(byte[] out, int offset) {
+            // Грубая гистограмма ядра для x = 0; точные корзины помечаются устаревшими
+            Arrays.fill(kernelCoarse, 0);
+            for (int kx = -radius; kx <= radius; kx++) {
+                int column = column(kx) * COARSE_BINS;
+                for (int b = 0; b < COARSE_BINS; b++) {
+                    kernelCoarse[b] += columnCoarse[column + b];
+                }
+            }
+            Arrays.fill(fineStamp, -1);
+
+            for (int x = 0; x < width; x++) {
+                if (x > 0) {
+                    int added = column(x + radius) * COARSE_BINS;
+                    int removed = column(x - 1 - radius) * COARSE_BINS;
+                    for (int b = 0; b < COARSE_BINS; b++) {
+                        kernelCoarse[b] += columnCoarse[added + b] - columnCoarse[removed + b];
+                    }
+                }
+
+                // Ищем грубую корзину, содержащую медиану
+                int count = 0;
+                int bucket = 0;
+                while (count + kernelCoarse[bucket] <= medianIndex) {
+                    count += kernelCoarse[bucket];
+                    bucket++;
+                }
+
+                updateFineBucket(bucket, x);
+
+                int value = bucket * FINE_PER_COARSE;
+                while (count + kernelFine[value] <= medianIndex) {
+                    count += kernelFine[value];
+                    value++;
+                }
+
+                out[offset + x] = (byte) value;
+            }
+        }
+
+        /**
+         * Приводит точные корзины грубой корзины bucket к положению ядра x: либо пересчитывает
+         * их заново, либо догоняет пошагово, если с прошлого обращения ядро сдвинулось мало.
+         */
+        private void updateFineBucket(int bucket, int x) {
+            int stamp = fineStamp[bucket];
+            if (stamp == x) {
+                return;
+            }
+
+            int first = bucket * FINE_PER_COARSE;
+            int last = first + FINE_PER_COARSE;
+
+            if (stamp < 0 || x - stamp > 2 * radius + 1) {
+                for (int i = first; i < last; i++) {
+                    kernelFine[i] = 0;
+                }
+                for (int kx = -radius; kx <= radius; kx++) {
+                    int column = column(x + kx) * BINS;
+                    for (int i = first; i < last; i++) {
+                        kernelFine[i] += columnFine[column + i];
+                    }
+                }
+            } else {
+                for (int t = stamp + 1; t <= x; t++) {
+                    int added = column(t + radius) * BINS;
+                    int removed = column(t - 1 - radius) * BINS;
+                    for (int i = first; i < last; i++) {
+                        kernelFine[i] += columnFine[added + i] - columnFine[removed + i];
+                    }
+                }
+            }
+
+            fineStamp[bucket] = x;
+        }
+    }
+}
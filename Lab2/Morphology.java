@@ -0,0 +1,395 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Морфологические операции над одним каналом изображения (плоскостью PixelBuffer).
+ * Кроме прямого перебора элемента есть быстрый путь: элемент раскладывается в объединение
+ * прямоугольников, эрозия по каждому прямоугольнику считается двумя одномерными проходами
+ * алгоритма van Herk / Gil-Werman (около трёх сравнений на пиксель при любой длине окна),
+ * а результаты объединяются минимумом (для дилатации — максимумом).
+ */
+final class Morphology {
+
+    private Morphology() {
+    }
+
+    /**
+     * Структурный элемент size x size: "square" — квадрат, "disk" — круг (с тем же порогом,
+     * что у круга 5x5: угловые клетки отсекаются), "cross" — крест.
+     */
+    static boolean[][] createElement(String shape, int size) {
+        boolean[][] element = new boolean[size][size];
+        int radius = size / 2;
+
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                switch (shape) {
+                    case "disk":
+                        element[dy + radius][dx + radius] = dx * dx + dy * dy <= (radius + 0.5) * (radius + 0.5);
+                        break;
+                    case "cross":
+                        element[dy + radius][dx + radius] = dx == 0 || dy == 0;
+                        break;
+                    case "square":
+                        element[dy + radius][dx + radius] = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Неизвестная форма элемента: " + shape);
+                }
+            }
+        }
+
+        return element;
+    }
+
+    /**
+     * Эрозия строк [y0, y1): минимум по пикселям, покрытым структурным элементом;
+     * за границей канал продолжается по правилу border.
+     */
+    static void erode(byte[] src, byte[] dst, int width, int height, boolean[][] element, BorderMode border,
+                      int y0, int y1) {
+        apply(src, dst, width, height, element, true, border, y0, y1);
+    }
+
+    /** Дилатация строк [y0, y1): максимум по пикселям, покрытым структурным элементом. */
+    static void dilate(byte[] src, byte[] dst, int width, int height, boolean[][] element, BorderMode border,
+                       int y0, int y1) {
+        apply(src, dst, width, height, element, false, border, y0, y1);
+    }
+
+    private static void apply(byte[] src, byte[] dst, int width, int height, boolean[][] element,
+                              boolean minimum, BorderMode border, int y0, int y1) {
+        int size = element.length;
+        int radius = size / 2;
+        BorderMode.PaddedRows rows = border.paddedRows(src, width, height, radius, size);
+
+        for (int y = y0; y < y1; y++) {
+            int offset = y * width;
+            Arrays.fill(dst, offset, offset + width, (byte) (minimum ? 255 : 0));
+
+            // Каждая клетка элемента — сдвиг дополненной строки, объединяемый со всей строкой результата
+            for (int ky = -radius; ky <= radius; ky++) {
+                byte[] row = rows.row(y + ky);
+                for (int kx = 0; kx < size; kx++) {
+                    if (element[ky + radius][kx]) {
+                        combineRows(dst, offset, row, kx, dst, offset, width, minimum);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Раскладывает структурный элемент в объединение прямоугольников.
+     * Каждый прямоугольник — {dx0, dx1, dy0, dy1}, смещения от центра элемента включительно.
+     * Для каждого различного горизонтального отрезка строки берутся максимальные интервалы
+     * строк, целиком содержащих этот отрезок; для выпуклых симметричных элементов (квадрат,
+     * круг, крест) получается по одному прямоугольнику на каждую различную ширину строки.
+     */
+    static int[][] decompose(boolean[][] element) {
+        int size = element.length;
+        int radius = size / 2;
+        List<int[]> segments = new ArrayList<>();
+
+        for (int row = 0; row < size; row++) {
+            int column = 0;
+            while (column < size) {
+                if (!element[row][column]) {
+                    column++;
+                    continue;
+                }
+                int start = column;
+                while (column < size && element[row][column]) {
+                    column++;
+                }
+                int[] segment = {start, column - 1, row};
+                boolean known = false;
+                for (int[] other : segments) {
+                    known |= other[0] == segment[0] && other[1] == segment[1];
+                }
+                if (!known) {
+                    segments.add(segment);
+                }
+            }
+        }
+
+        List<int[]> rectangles = new ArrayList<>();
+        for (int[] segment : segments) {
+            int row = 0;
+            while (row < size) {
+                if (!containsSegment(element[row], segment[0], segment[1])) {
+                    row++;
+                    continue;
+                }
+                int start = row;
+                while (row < size && containsSegment(element[row], segment[0], segment[1])) {
+                    row++;
+                }
+                rectangles.add(new int[]{segment[0] - radius, segment[1] - radius, start - radius, row - 1 - radius});
+            }
+        }
+
+        // Убираем прямоугольники, целиком лежащие внутри других
+        List<int[]> result = new ArrayList<>();
+        for (int[] candidate : rectangles) {
+            boolean covered = false;
+            for (int[] other : rectangles) {
+                covered |= other != candidate && other[0] <= candidate[0] && other[1] >= candidate[1]
+                        && other[2] <= candidate[2] && other[3] >= candidate[3];
+            }
+            if (!covered) {
+                result.add(candidate);
+            }
+        }
+
+        return result.toArray(new int[0][]);
+    }
+
+    private static boolean containsSegment(boolean[] row, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            if (!row[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Эрозия строк [y0, y1) по элементу, разложенному decompose. */
+    static void erodeDecomposed(byte[] src, byte[] dst, int width, int height, int[][] rectangles,
+                                BorderMode border, int y0, int y1) {
+        applyDecomposed(src, dst, width, height, rectangles, true, border, y0, y1);
+    }
+
+    /** Дилатация строк [y0, y1) по элементу, разложенному decompose. */
+    static void dilateDecomposed(byte[] src, byte[] dst, int width, int height, int[][] rectangles,
+                                 BorderMode border, int y0, int y1) {
+        applyDecomposed(src, dst, width, height, rectangles, false, border, y0, y1);
+    }
+
+    /**
+     * Разность a - b строк [y0, y1), ограниченная снизу нулём: морфологический градиент
+     * (дилатация - эрозия) и преобразования top-hat (изображение - открытие, закрытие - изображение).
+     */
+    static void difference(byte[] a, byte[] b, byte[] dst, int width, int y0, int y1) {
+        for (int i = y0 * width; i < y1 * width; i++) {
+            dst[i] = (byte) Math.max((a[i] & 0xFF) - (b[i] & 0xFF), 0);
+        }
+    }
+
+    private static void applyDecomposed(byte[] src, byte[] dst, int width, int height, int[][] rectangles,
+                                        boolean minimum, BorderMode border, int y0, int y1) {
+        // Общее ядро считает в int: строки канала расширяются при чтении, результат сужается обратно
+        int[] out = scratch((y1 - y0) * width);
+        decomposedExtremum((y, row) -> {
+            for (int x = 0, offset = y * width; x < width; x++) {
+                row[x] = src[offset + x] & 0xFF;
+            }
+        }, width, height, rectangles, minimum, border, BorderMode.CONSTANT_VALUE, y0, y1, out, 0);
+        for (int i = 0, offset = y0 * width, n = (y1 - y0) * width; i < n; i++) {
+            dst[offset + i] = (byte) out[i];
+        }
+        BufferPool.releaseInts(out);
+    }
+
+    /**
+     * Рабочий массив полосы из BufferPool. Высота полос меняется от вызова к вызову, поэтому
+     * длина округляется вверх до степени двойки — иначе почти каждая полоса была бы новым ключом.
+     */
+    private static int[] scratch(int length) {
+        return BufferPool.borrowInts(Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    }
+
+    /** Строки источника общего ядра: read заполняет row значениями строки y (0 <= y < height). */
+    interface Rows {
+        void read(int y, int[] row);
+    }
+
+    /**
+     * Общее ядро эрозии (minimum) и дилатации по элементу, разложенному decompose, над значениями
+     * int — для байтовых каналов и для ключей ColorMorphology. Строка y из [y0, y1) записывается
+     * в out[outOffset + (y - y0) * width ..]; за границей — по border, для CONSTANT — constant.
+     */
+    static void decomposedExtremum(Rows src, int width, int height, int[][] rectangles, boolean minimum,
+                                   BorderMode border, int constant, int y0, int y1, int[] out, int outOffset) {
+        int rows = y1 - y0;
+        Arrays.fill(out, outOffset, outOffset + rows * width, minimum ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+
+        int maxLength = 1;
+        int dyMinAll = 0, dyMaxAll = 0;
+        for (int[] r : rectangles) {
+            maxLength = Math.max(maxLength, Math.max(r[1] - r[0], r[3] - r[2]) + 1);
+            dyMinAll = Math.min(dyMinAll, r[2]);
+            dyMaxAll = Math.max(dyMaxAll, r[3]);
+        }
+        // Рабочие массивы: строка источника, строка для горизонтального прохода, блоки g/h для вертикального
+        int[] line = scratch(width);
+        int[] lineG = scratch(width + maxLength);
+        int[] lineH = scratch(width + maxLength);
+        int[] blockG = scratch((rows + maxLength) * width);
+        int[] blockH = scratch((rows + maxLength) * width);
+        int[] horizontal = scratch((rows + dyMaxAll - dyMinAll) * width);
+
+        boolean[] done = new boolean[rectangles.length];
+        for (int i = 0; i < rectangles.length; i++) {
+            if (done[i]) {
+                continue;
+            }
+            int dx0 = rectangles[i][0], dx1 = rectangles[i][1];
+
+            // Строки источника, нужные всем прямоугольникам с этим горизонтальным отрезком
+            int dyMin = Integer.MAX_VALUE, dyMax = Integer.MIN_VALUE;
+            for (int j = i; j < rectangles.length; j++) {
+                if (rectangles[j][0] == dx0 && rectangles[j][1] == dx1) {
+                    dyMin = Math.min(dyMin, rectangles[j][2]);
+                    dyMax = Math.max(dyMax, rectangles[j][3]);
+                }
+            }
+            // Строки first..last нумеруются как строки изображения, в том числе за его границей,
+            // поэтому вертикальный проход обходится без проверок; строки за границей — по border
+            int first = y0 + dyMin;
+            int last = y1 - 1 + dyMax;
+
+            // Горизонтальный проход: минимум по отрезку [dx0, dx1] в каждой нужной строке
+            for (int r = first; r <= last; r++) {
+                int row = border.index(r, height);
+                int offset = (r - first) * width;
+                if (row < 0) {
+                    Arrays.fill(horizontal, offset, offset + width, constant);
+                    continue;
+                }
+                src.read(row, line);
+                int length = dx1 - dx0 + 1;
+                int extended = width + length - 1;
+                // Позиция j продолженной строки — пиксель j + dx0; по border считаются только края
+                int inside0 = Math.min(Math.max(-dx0, 0), extended);
+                int inside1 = Math.max(inside0, Math.min(width - dx0, extended));
+                for (int j = 0; j < inside0; j++) {
+                    int index = border.index(j + dx0, width);
+                    lineH[j] = index < 0 ? constant : line[index];
+                }
+                System.arraycopy(line, inside0 + dx0, lineH, inside0, inside1 - inside0);
+                for (int j = inside1; j < extended; j++) {
+                    int index = border.index(j + dx0, width);
+                    lineH[j] = index < 0 ? constant : line[index];
+                }
+                extendedExtremum(lineG, lineH, width, length, minimum);
+                System.arraycopy(lineH, 0, horizontal, offset, width);
+            }
+
+            // Вертикальный проход для каждого прямоугольника и объединение с результатом
+            for (int j = i; j < rectangles.length; j++) {
+                if (rectangles[j][0] != dx0 || rectangles[j][1] != dx1) {
+                    continue;
+                }
+                done[j] = true;
+                verticalExtremum(horizontal, first, width, y0, y1, rectangles[j][2], rectangles[j][3],
+                        minimum, blockG, blockH, out, outOffset);
+            }
+        }
+        BufferPool.releaseInts(line, lineG, lineH, blockG, blockH, horizontal);
+    }
+
+    /**
+     * Одномерный van Herk / Gil-Werman по строке: out[x] = экстремум src[x + a .. x + b], за краями
+     * строки — по правилу border. Продолженная строка делится на блоки длины окна; g — накопленный
+     * экстремум от начала блока, h — от конца блока, ответ — экстремум h[x] и g[x + L - 1].
+     */
+    static void runningExtremum(byte[] src, int offset, int n, int a, int b, boolean minimum, BorderMode border,
+                                int[] g, int[] h, byte[] out, int outOffset) {
+        int length = b - a + 1;
+        int extended = n + length - 1;
+
+        // Сначала h — продолженная строка: позиция j соответствует пикселю j + a;
+        // по правилу border считаются только позиции за краями
+        int inside0 = Math.min(Math.max(-a, 0), extended);
+        int inside1 = Math.max(inside0, Math.min(n - a, extended));
+        for (int j = 0; j < inside0; j++) {
+            h[j] = border.value(src, offset, j + a, n);
+        }
+        for (int j = inside0; j < inside1; j++) {
+            h[j] = src[offset + j + a] & 0xFF;
+        }
+        for (int j = inside1; j < extended; j++) {
+            h[j] = border.value(src, offset, j + a, n);
+        }
+
+        extendedExtremum(g, h, n, length, minimum);
+        for (int x = 0; x < n; x++) {
+            out[outOffset + x] = (byte) h[x];
+        }
+    }
+
+    /**
+     * Блоки van Herk по продолженной строке h[0 .. n + length - 1): после вызова h[x] для x < n —
+     * экстремум исходных h[x .. x + length - 1].
+     */
+    private static void extendedExtremum(int[] g, int[] h, int n, int length, boolean minimum) {
+        int extended = n + length - 1;
+        for (int j = 0; j < extended; j++) {
+            int value = h[j];
+            g[j] = (j % length == 0) ? value : (minimum ? Math.min(g[j - 1], value) : Math.max(g[j - 1], value));
+        }
+        for (int j = extended - 2; j >= 0; j--) {
+            if ((j + 1) % length != 0) {
+                h[j] = minimum ? Math.min(h[j + 1], h[j]) : Math.max(h[j + 1], h[j]);
+            }
+        }
+        // h[x] после x больше не читается, поэтому ответ пишется на его место
+        for (int x = 0; x < n; x++) {
+            h[x] = minimum ? Math.min(h[x], g[x + length - 1]) : Math.max(h[x], g[x + length - 1]);
+        }
+    }
+
+    /**
+     * Вертикальный van Herk / Gil-Werman сразу по целым строкам: для строк y из [y0, y1)
+     * экстремум строк rows[y + dy0 .. y + dy1] объединяется с dst[dstOffset + (y - y0) * width ..].
+     * rows содержит строки с номерами от first, уже продолженные за границу изображения.
+     */
+    private static void verticalExtremum(int[] rows, int first, int width, int y0, int y1,
+                                         int dy0, int dy1, boolean minimum,
+                                         int[] g, int[] h, int[] dst, int dstOffset) {
+        int length = dy1 - dy0 + 1;
+        int extended = (y1 - y0) + length - 1;
+
+        for (int j = 0; j < extended; j++) {
+            int row = (y0 + dy0 + j - first) * width;
+            int out = j * width;
+            if (j % length == 0) {
+                System.arraycopy(rows, row, g, out, width);
+            } else {
+                combineRows(g, out - width, rows, row, g, out, width, minimum);
+            }
+        }
+        for (int j = extended - 1; j >= 0; j--) {
+            int row = (y0 + dy0 + j - first) * width;
+            int out = j * width;
+            if (j == extended - 1 || (j + 1) % length == 0) {
+                System.arraycopy(rows, row, h, out, width);
+            } else {
+                combineRows(h, out + width, rows, row, h, out, width, minimum);
+            }
+        }
+        for (int j = 0; j < y1 - y0; j++) {
+            combineRows(h, j * width, g, (j + length - 1) * width, h, j * width, width, minimum);
+            combineRows(dst, dstOffset + j * width, h, j * width, dst, dstOffset + j * width, width, minimum);
+        }
+    }
+
+    static void combineRows(byte[] a, int aOffset, byte[] b, int bOffset, byte[] out, int outOffset,
+                                    int width, boolean minimum) {
+        for (int x = 0; x < width; x++) {
+            int va = a[aOffset + x] & 0xFF;
+            int vb = b[bOffset + x] & 0xFF;
+            out[outOffset + x] = (byte) (minimum ? Math.min(va, vb) : Math.max(va, vb));
+        }
+    }
+
+    private static void combineRows(int[] a, int aOffset, int[] b, int bOffset, int[] out, int outOffset,
+                                    int width, boolean minimum) {
+        for (int x = 0; x < width; x++) {
+            out[outOffset + x] = minimum ? Math.min(a[aOffset + x], b[bOffset + x])
+                    : Math.max(a[aOffset + x], b[bOffset + x]);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Параллельное выполнение фильтров на ForkJoinPool.
+ * Каждый канал изображения делится на горизонтальные полосы строк, полосы обрабатываются
+ * независимо. Источник только читается, поэтому полоса берёт строки ореола (radius строк
+ * сверху и снизу) прямо из общего массива, а пишет только в свои строки результата.
+ * Если вызов идёт внутри ProcessingJob, полосы режутся мельче, чтобы прогресс обновлялся
+ * часто, а отмена срабатывала посреди изображения.
+ */
+final class ParallelExecutor {
+
+    /** Обработка строк [y0, y1) канала plane. */
+    interface BandTask {
+        void run(int plane, int y0, int y1);
+    }
+
+    // Минимальная высота полосы: меньшие полосы тратят больше времени на ореол, чем на работу
+    private static final int MIN_BAND_ROWS = 32;
+    // Полос на поток: запас для выравнивания нагрузки между потоками
+    private static final int BANDS_PER_THREAD = 4;
+    // Высота полосы при отслеживании прогресса: шаг индикатора и задержка отмены
+    private static final int PROGRESS_ROWS = 128;
+
+    private final ForkJoinPool pool;
+
+    ParallelExecutor(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Выполняет task для всех полос всех каналов и ждёт завершения.
+     * halo — радиус ядра: полоса не делается ниже 4 * halo строк, чтобы повторное
+     * чтение строк ореола соседними полосами оставалось малой долей работы.
+     */
+    void forEachBand(int planes, int height, int halo, BandTask task) {
+        int minRows = Math.max(MIN_BAND_ROWS, 4 * halo);
+        int bands = Math.max(1, Math.min(pool.getParallelism() * BANDS_PER_THREAD, height / minRows));
+        if (pool.getParallelism() == 1) {
+            bands = 1;
+        }
+
+        ProcessingJob job = ProcessingJob.current();
+        if (job != null) {
+            bands = Math.max(bands, height / Math.max(minRows, PROGRESS_ROWS));
+            job.beginPass((long) planes * height);
+        }
+
+        pool.invoke(new BandAction(task, job, planes, height, bands, 0, planes * bands));
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /** Рекурсивно делит диапазон номеров полос пополам, пока не останется одна полоса. */
+    private static final class BandAction extends RecursiveAction {
+        private final BandTask task;
+        private final ProcessingJob job;
+        private final int planes;
+        private final int height;
+        private final int bands;
+        private final int from;
+        private final int to;
+
+        BandAction(BandTask task, ProcessingJob job, int planes, int height, int bands, int from, int to) {
+            this.task = task;
+            this.job = job;
+            this.planes = planes;
+            this.height = height;
+            this.bands = bands;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BandAction(task, job, planes, height, bands, from, middle),
+                        new BandAction(task, job, planes, height, bands, middle, to));
+                return;
+            }
+
+            int plane = from / bands;
+            int band = from % bands;
+            int y0 = (int) ((long) height * band / bands);
+            int y1 = (int) ((long) height * (band + 1) / bands);
+            if (y0 < y1) {
+                if (job != null) {
+                    job.checkCancelled();
+                }
+                task.run(plane, y0, y1);
+                if (job != null) {
+                    job.rowsCompleted(y1 - y0);
+                }
+            }
+        }
+    }
+}
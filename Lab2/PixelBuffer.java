@@ -0,0 +1,232 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Изображение, распакованное в планарные массивы каналов по 8 бит.
+ * Фильтры работают только с этими массивами: изображение распаковывается один раз,
+ * обрабатывается и один раз записывается обратно, без getRGB/setRGB на каждое обращение.
+ * Полутоновое изображение хранится одной плоскостью, цветное — тремя (R, G, B).
+ */
+final class PixelBuffer {
+    final int width;
+    final int height;
+    final byte[][] planes;
+
+    PixelBuffer(int width, int height, int channels) {
+        this.width = width;
+        this.height = height;
+        this.planes = new byte[channels][width * height];
+    }
+
+    int channels() {
+        return planes.length;
+    }
+
+    /** Пустой буфер того же размера и с тем же числом каналов. */
+    PixelBuffer createCompatible() {
+        return new PixelBuffer(width, height, planes.length);
+    }
+
+    /** Распаковывает изображение в новый буфер (см. readFrom). */
+    static PixelBuffer fromImage(BufferedImage image) {
+        BufferedImage readable = readable(image);
+        PixelBuffer buffer = new PixelBuffer(readable.getWidth(), readable.getHeight(), channelsOf(readable));
+        buffer.readFrom(readable);
+        return buffer;
+    }
+
+    /**
+     * Изображение, которое readFrom читает напрямую: канонических форматов (и TYPE_INT_ARGB)
+     * — оно само, остальные приводятся ImageFormat.normalize.
+     */
+    static BufferedImage readable(BufferedImage image) {
+        switch (directType(image)) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return image;
+            default:
+                return ImageFormat.normalize(image);
+        }
+    }
+
+    /** Число каналов буфера для изображения, возвращённого readable. */
+    static int channelsOf(BufferedImage readable) {
+        return readable.getType() == BufferedImage.TYPE_BYTE_GRAY ? 1 : 3;
+    }
+
+    /**
+     * Распаковывает изображение того же размера, возвращённое readable, в этот буфер.
+     * Данные читаются прямо из DataBufferInt/DataBufferByte.
+     */
+    void readFrom(BufferedImage image) {
+        Raster raster = image.getRaster();
+
+        switch (directType(image)) {
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = scanlineStride(raster);
+                for (int y = 0; y < height; y++) {
+                    System.arraycopy(data, y * stride, planes[0], y * width, width);
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = scanlineStride(raster);
+                byte[] red = planes[0], green = planes[1], blue = planes[2];
+                for (int y = 0; y < height; y++) {
+                    int in = y * stride;
+                    int out = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int rgb = data[in + x];
+                        red[out + x] = (byte) (rgb >> 16);
+                        green[out + x] = (byte) (rgb >> 8);
+                        blue[out + x] = (byte) rgb;
+                    }
+                }
+                return;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = scanlineStride(raster);
+                byte[] red = planes[0], green = planes[1], blue = planes[2];
+                for (int y = 0; y < height; y++) {
+                    int in = y * stride;
+                    int out = y * width;
+                    for (int x = 0; x < width; x++, in += 3) {
+                        blue[out + x] = data[in];
+                        green[out + x] = data[in + 1];
+                        red[out + x] = data[in + 2];
+                    }
+                }
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Формат не читается напрямую: " + image.getType());
+        }
+    }
+
+    /**
+     * Записывает буфер в изображение того же размера. Для форматов с альфа-каналом
+     * пиксели записываются непрозрачными; неканонические форматы записываются через setRGB.
+     */
+    void writeTo(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        int type = directType(image);
+        if (type == BufferedImage.TYPE_BYTE_GRAY && planes.length != 1) {
+            type = BufferedImage.TYPE_CUSTOM;
+        }
+
+        switch (type) {
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = scanlineStride(raster);
+                for (int y = 0; y < height; y++) {
+                    System.arraycopy(planes[0], y * width, data, y * stride, width);
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = scanlineStride(raster);
+                for (int y = 0; y < height; y++) {
+                    int in = y * width;
+                    int out = y * stride;
+                    for (int x = 0; x < width; x++) {
+                        data[out + x] = 0xFF000000 | packedRGB(in + x);
+                    }
+                }
+                return;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = scanlineStride(raster);
+                byte[] red = plane(0), green = plane(1), blue = plane(2);
+                for (int y = 0; y < height; y++) {
+                    int in = y * width;
+                    int out = y * stride;
+                    for (int x = 0; x < width; x++, out += 3) {
+                        data[out] = blue[in + x];
+                        data[out + 1] = green[in + x];
+                        data[out + 2] = red[in + x];
+                    }
+                }
+                return;
+            }
+            default: {
+                int[] row = new int[width];
+                for (int y = 0; y < height; y++) {
+                    int in = y * width;
+                    for (int x = 0; x < width; x++) {
+                        row[x] = 0xFF000000 | packedRGB(in + x);
+                    }
+                    image.setRGB(0, y, width, 1, row, 0, width);
+                }
+            }
+        }
+    }
+
+    /**
+     * Рисует изображение в единственную плоскость буфера средствами Java2D — то же
+     * полутоновое преобразование, что и drawImage в новое изображение TYPE_BYTE_GRAY,
+     * но без промежуточного изображения.
+     */
+    void drawGray(BufferedImage image) {
+        DataBufferByte data = new DataBufferByte(planes[0], planes[0].length);
+        WritableRaster raster = Raster.createInterleavedRaster(data, width, height, width, 1, new int[]{0}, null);
+        ColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[]{8},
+                false, true, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        // Модель и растр совпадают с TYPE_BYTE_GRAY, поэтому Java2D использует те же циклы
+        Graphics2D g = new BufferedImage(model, raster, false, null).createGraphics();
+        // Буфер из пула не очищен: пиксели заменяются, а не накладываются
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+    }
+
+    /** Канал c; у полутонового буфера все три канала совпадают с единственной плоскостью. */
+    private byte[] plane(int c) {
+        return planes[planes.length == 1 ? 0 : c];
+    }
+
+    private int packedRGB(int i) {
+        return ((plane(0)[i] & 0xFF) << 16) | ((plane(1)[i] & 0xFF) << 8) | (plane(2)[i] & 0xFF);
+    }
+
+    /**
+     * Тип изображения, если его данные можно читать напрямую из банка данных,
+     * иначе TYPE_CUSTOM (например, для подызображений со смещённым растром).
+     */
+    private static int directType(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return BufferedImage.TYPE_CUSTOM;
+        }
+        return image.getType();
+    }
+
+    private static int scanlineStride(Raster raster) {
+        SampleModel model = raster.getSampleModel();
+        if (model instanceof ComponentSampleModel) {
+            return ((ComponentSampleModel) model).getScanlineStride();
+        }
+        return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+    }
+}
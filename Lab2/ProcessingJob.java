@@ -0,0 +1,90 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Фоновая задача обработки: отмена и прогресс по обработанным строкам.
+ * Задача привязывается к потоку, который её выполняет (run), а ParallelExecutor.forEachBand
+ * находит её через current(): перед каждой полосой проверяет отмену, после — учитывает
+ * готовые строки. Один вызов forEachBand — один проход; число проходов задаётся заранее.
+ */
+final class ProcessingJob {
+
+    /** Получает процент выполнения, вызывается из рабочих потоков. */
+    interface ProgressListener {
+        void progressChanged(int percent);
+    }
+
+    private static final ThreadLocal<ProcessingJob> CURRENT = new ThreadLocal<>();
+
+    private final int passes;
+    private final ProgressListener listener;
+    private final AtomicLong rowsDone = new AtomicLong();
+    private final AtomicInteger reported = new AtomicInteger(-1);
+    private volatile boolean cancelled;
+    private volatile int pass = -1;
+    private volatile long passRows = 1;
+
+    ProcessingJob(int passes, ProgressListener listener) {
+        this.passes = Math.max(1, passes);
+        this.listener = listener;
+    }
+
+    /** Задача, выполняемая текущим потоком, или null вне run. */
+    static ProcessingJob current() {
+        return CURRENT.get();
+    }
+
+    /** Выполняет work в текущем потоке; при отмене бросает CancellationException. */
+    <T> T run(Supplier<T> work) {
+        CURRENT.set(this);
+        try {
+            checkCancelled();
+            T result = work.get();
+            checkCancelled();
+            return result;
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Обработка отменена");
+        }
+    }
+
+    /** Начало очередного прохода по rows строкам (все каналы вместе). */
+    void beginPass(long rows) {
+        passRows = Math.max(1, rows);
+        rowsDone.set(0);
+        pass = Math.min(pass + 1, passes - 1);
+        report(percent(0));
+    }
+
+    void rowsCompleted(int rows) {
+        report(percent(rowsDone.addAndGet(rows)));
+    }
+
+    /** Полосы завершаются в произвольном порядке: сообщаем только о росте процента. */
+    private void report(int percent) {
+        int previous = reported.getAndAccumulate(percent, Math::max);
+        if (percent > previous) {
+            listener.progressChanged(percent);
+        }
+    }
+
+    private int percent(long done) {
+        double fraction = (pass + Math.min(1.0, (double) done / passRows)) / passes;
+        return (int) Math.min(100, Math.round(100 * fraction));
+    }
+}
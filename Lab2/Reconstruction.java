@@ -0,0 +1,278 @@
+import java.util.Arrays;
+
+/**
+ * Морфологическая реконструкция полутонового канала: маркер многократно дилатируется
+ * (для реконструкции эрозией — эродируется) элементом 3 x 3 и ограничивается маской,
+ * пока не перестанет меняться. Вместо сотен полных проходов используется гибридный
+ * алгоритм Vincent (1993): прямой и обратный растровые проходы распространяют значения
+ * по всему изображению, а пиксели, которые ещё могут измениться, обрабатываются очередью
+ * FIFO — каждый пиксель вне очереди читается ровно дважды.
+ *
+ * Связность — 8 соседей. Реконструкция эрозией — та же дилатация над инвертированными
+ * значениями (v ^ 255), без отдельной копии каналов; каналы цветного изображения
+ * реконструируются независимо. Реконструкция зависит от всего изображения, поэтому
+ * на полосы не делится и выполняется в одном потоке; отмена и прогресс задачи
+ * ProcessingJob проверяются по строкам растровых проходов.
+ */
+final class Reconstruction {
+
+    private static final int PROGRESS_ROWS = 64;
+
+    private Reconstruction() {
+    }
+
+    /** Реконструкция дилатацией каждого канала: markers (не выше masks) заменяются результатом. */
+    static void byDilation(byte[][] markers, byte[][] masks, int width, int height) {
+        reconstruct(markers, masks, width, height, 0);
+    }
+
+    /** Реконструкция эрозией каждого канала: markers (не ниже masks) заменяются результатом. */
+    static void byErosion(byte[][] markers, byte[][] masks, int width, int height) {
+        reconstruct(markers, masks, width, height, 0xFF);
+    }
+
+    /**
+     * Заполнение дыр: реконструкция эрозией от края изображения. Маркер равен src на краю
+     * и 255 внутри, поэтому заполняются все тёмные области (на бинарном изображении — дыры),
+     * не связанные с краем, до уровня их самого низкого порога.
+     */
+    static void fillHoles(byte[][] src, byte[][] dst, int width, int height) {
+        for (int c = 0; c < src.length; c++) {
+            byte[] in = src[c], out = dst[c];
+            Arrays.fill(out, (byte) 255);
+            for (int x = 0; x < width; x++) {
+                out[x] = in[x];
+                out[(height - 1) * width + x] = in[(height - 1) * width + x];
+            }
+            for (int y = 0; y < height; y++) {
+                out[y * width] = in[y * width];
+                out[y * width + width - 1] = in[y * width + width - 1];
+            }
+        }
+        byErosion(dst, src, width, height);
+    }
+
+    /**
+     * Реконструкция дилатацией над значениями v ^ flip. Как у forEachBand, прямые проходы
+     * всех каналов — один проход задачи, обратные вместе с очередью — второй.
+     */
+    private static void reconstruct(byte[][] markers, byte[][] masks, int width, int height, int flip) {
+        ProcessingJob job = ProcessingJob.current();
+        beginPass(job, (long) markers.length * height);
+        for (int c = 0; c < markers.length; c++) {
+            forwardScan(markers[c], masks[c], width, height, flip, job);
+        }
+        IntQueue queue = new IntQueue(Math.max(16, width + height));
+        beginPass(job, (long) markers.length * height);
+        for (int c = 0; c < markers.length; c++) {
+            backwardScan(markers[c], masks[c], width, height, flip, job, queue);
+            propagate(markers[c], masks[c], width, height, flip, queue);
+        }
+    }
+
+    /**
+     * Прямой проход: максимум по уже пройденным соседям (слева и в строке выше).
+     * Крайние столбцы и первая строка — с проверками, внутренние пиксели — без них.
+     */
+    private static void forwardScan(byte[] marker, byte[] mask, int width, int height, int flip,
+                                    ProcessingJob job) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            forward(marker, mask, width, 0, y, flip);
+            if (y == 0) {
+                for (int x = 1; x < width; x++) {
+                    forward(marker, mask, width, x, y, flip);
+                }
+                rowCompleted(job, y);
+                continue;
+            }
+            int left = (marker[row] & 0xFF) ^ flip;
+            for (int p = row + 1, up = p - width; p < row + width - 1; p++, up++) {
+                int value = Math.max(Math.max((marker[p] & 0xFF) ^ flip, left),
+                        Math.max(Math.max((marker[up - 1] & 0xFF) ^ flip, (marker[up] & 0xFF) ^ flip),
+                                (marker[up + 1] & 0xFF) ^ flip));
+                value = Math.min(value, (mask[p] & 0xFF) ^ flip);
+                marker[p] = (byte) (value ^ flip);
+                left = value;
+            }
+            if (width > 1) {
+                forward(marker, mask, width, width - 1, y, flip);
+            }
+            rowCompleted(job, y);
+        }
+    }
+
+    /**
+     * Обратный проход: то же по соседям справа и снизу; пиксель, от которого значение
+     * ещё может перейти к такому соседу, ставится в очередь.
+     */
+    private static void backwardScan(byte[] marker, byte[] mask, int width, int height, int flip,
+                                     ProcessingJob job, IntQueue queue) {
+        for (int y = height - 1; y >= 0; y--) {
+            int row = y * width;
+            backward(marker, mask, width, height, width - 1, y, flip, queue);
+            if (y == height - 1) {
+                for (int x = width - 2; x >= 0; x--) {
+                    backward(marker, mask, width, height, x, y, flip, queue);
+                }
+                rowCompleted(job, height - 1 - y);
+                continue;
+            }
+            int right = (marker[row + width - 1] & 0xFF) ^ flip;
+            for (int p = row + width - 2, down = p + width; p > row; p--, down--) {
+                int below = (marker[down] & 0xFF) ^ flip;
+                int belowLeft = (marker[down - 1] & 0xFF) ^ flip;
+                int belowRight = (marker[down + 1] & 0xFF) ^ flip;
+                int value = Math.max(Math.max((marker[p] & 0xFF) ^ flip, right),
+                        Math.max(Math.max(below, belowLeft), belowRight));
+                value = Math.min(value, (mask[p] & 0xFF) ^ flip);
+                marker[p] = (byte) (value ^ flip);
+                if ((right < value && right < ((mask[p + 1] & 0xFF) ^ flip))
+                        || (below < value && below < ((mask[down] & 0xFF) ^ flip))
+                        || (belowLeft < value && belowLeft < ((mask[down - 1] & 0xFF) ^ flip))
+                        || (belowRight < value && belowRight < ((mask[down + 1] & 0xFF) ^ flip))) {
+                    queue.add(p);
+                }
+                right = value;
+            }
+            if (width > 1) {
+                backward(marker, mask, width, height, 0, y, flip, queue);
+            }
+            rowCompleted(job, height - 1 - y);
+        }
+    }
+
+    /** Распространение: значение переходит к соседям, пока они ниже его и не упёрлись в маску. */
+    private static void propagate(byte[] marker, byte[] mask, int width, int height, int flip, IntQueue queue) {
+        while (!queue.isEmpty()) {
+            int p = queue.remove();
+            int value = (marker[p] & 0xFF) ^ flip;
+            int x = p % width;
+            int y = p / width;
+            for (int dy = -1; dy <= 1; dy++) {
+                int ny = y + dy;
+                if (ny < 0 || ny >= height) {
+                    continue;
+                }
+                for (int dx = -1; dx <= 1; dx++) {
+                    int nx = x + dx;
+                    if ((dx == 0 && dy == 0) || nx < 0 || nx >= width) {
+                        continue;
+                    }
+                    int q = ny * width + nx;
+                    int neighbor = (marker[q] & 0xFF) ^ flip;
+                    int limit = (mask[q] & 0xFF) ^ flip;
+                    if (neighbor < value && neighbor != limit) {
+                        marker[q] = (byte) (Math.min(value, limit) ^ flip);
+                        queue.add(q);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Шаг прямого прохода для пикселя (x, y) с проверкой границ. */
+    private static void forward(byte[] marker, byte[] mask, int width, int x, int y, int flip) {
+        int p = y * width + x;
+        int value = (marker[p] & 0xFF) ^ flip;
+        if (x > 0) {
+            value = Math.max(value, (marker[p - 1] & 0xFF) ^ flip);
+        }
+        if (y > 0) {
+            int up = p - width;
+            value = Math.max(value, (marker[up] & 0xFF) ^ flip);
+            if (x > 0) {
+                value = Math.max(value, (marker[up - 1] & 0xFF) ^ flip);
+            }
+            if (x < width - 1) {
+                value = Math.max(value, (marker[up + 1] & 0xFF) ^ flip);
+            }
+        }
+        marker[p] = (byte) (Math.min(value, (mask[p] & 0xFF) ^ flip) ^ flip);
+    }
+
+    /** Шаг обратного прохода для пикселя (x, y) с проверкой границ и постановкой в очередь. */
+    private static void backward(byte[] marker, byte[] mask, int width, int height, int x, int y, int flip,
+                                 IntQueue queue) {
+        int p = y * width + x;
+        int value = (marker[p] & 0xFF) ^ flip;
+        if (x < width - 1) {
+            value = Math.max(value, (marker[p + 1] & 0xFF) ^ flip);
+        }
+        if (y < height - 1) {
+            int down = p + width;
+            value = Math.max(value, (marker[down] & 0xFF) ^ flip);
+            if (x < width - 1) {
+                value = Math.max(value, (marker[down + 1] & 0xFF) ^ flip);
+            }
+            if (x > 0) {
+                value = Math.max(value, (marker[down - 1] & 0xFF) ^ flip);
+            }
+        }
+        value = Math.min(value, (mask[p] & 0xFF) ^ flip);
+        marker[p] = (byte) (value ^ flip);
+
+        if ((x < width - 1 && canRaise(marker, mask, p + 1, value, flip))
+                || (y < height - 1 && (canRaise(marker, mask, p + width, value, flip)
+                || (x < width - 1 && canRaise(marker, mask, p + width + 1, value, flip))
+                || (x > 0 && canRaise(marker, mask, p + width - 1, value, flip))))) {
+            queue.add(p);
+        }
+    }
+
+    /** Может ли сосед q подняться до value: он ниже value и ниже своей маски. */
+    private static boolean canRaise(byte[] marker, byte[] mask, int q, int value, int flip) {
+        int neighbor = (marker[q] & 0xFF) ^ flip;
+        return neighbor < value && neighbor < ((mask[q] & 0xFF) ^ flip);
+    }
+
+    private static void beginPass(ProcessingJob job, long rows) {
+        if (job != null) {
+            job.checkCancelled();
+            job.beginPass(rows);
+        }
+    }
+
+    /** Отчёт о прогрессе и проверка отмены раз в PROGRESS_ROWS строк прохода. */
+    private static void rowCompleted(ProcessingJob job, int done) {
+        if (job != null && (done + 1) % PROGRESS_ROWS == 0) {
+            job.checkCancelled();
+            job.rowsCompleted(PROGRESS_ROWS);
+        }
+    }
+
+    /** Очередь FIFO номеров пикселей на кольцевом массиве, растущем по мере надобности. */
+    private static final class IntQueue {
+        private int[] items;
+        private int head;
+        private int size;
+
+        IntQueue(int capacity) {
+            items = new int[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int item) {
+            if (size == items.length) {
+                int[] grown = new int[2 * items.length];
+                int tail = items.length - head;
+                System.arraycopy(items, head, grown, 0, tail);
+                System.arraycopy(items, 0, grown, tail, head);
+                items = grown;
+                head = 0;
+            }
+            items[(head + size) % items.length] = item;
+            size++;
+        }
+
+        int remove() {
+            int item = items[head];
+            head = (head + 1) % items.length;
+            size--;
+            return item;
+        }
+    }
+}
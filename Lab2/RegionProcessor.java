@@ -0,0 +1,204 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Обработка только выделенной области (ROI) исходного изображения. Область вместе
+ * с ореолом в halo пикселей — радиусом операции — вырезается, обрабатывается как
+ * отдельное изображение, и её внутренняя часть записывается в полноразмерный холст
+ * результата. Для локальных операций это ровно те же пиксели, что и при обработке
+ * всего изображения: у края холста край вырезки совпадает с краем изображения, а внутри
+ * до записанных пикселей продолжение за границей вырезки не доходит. Исключение —
+ * BorderMode.WRAP: за краем изображения продолжается противоположный край, поэтому
+ * ореол у края берётся оттуда же, а край вырезки уже не совпадает с краем изображения.
+ *
+ * Холст разбит на плитки TILE x TILE, и для каждой запоминается, посчитана ли она с
+ * текущими параметрами. При сдвиге или расширении области считаются только плитки,
+ * которых ещё нет на холсте; соседние непосчитанные плитки объединяются в прямоугольники,
+ * чтобы ореол не повторялся для каждой. Холст принадлежит одному набору параметров: при
+ * их смене начинается новый, на котором вне области видно исходное изображение.
+ *
+ * run выполняется в фоновом потоке, остальные методы — в потоке событий; общее
+ * состояние защищено блокировкой объекта.
+ */
+final class RegionProcessor {
+
+    static final int TILE = 64;
+    // Ореол операций, зависящих от всего изображения (реконструкция): вырезка — всё изображение
+    static final int WHOLE_IMAGE = Integer.MAX_VALUE / 4;
+
+    private final BufferedImage source;
+    private final String key;
+    private final int halo;
+    private final boolean wrap;
+    private final int tilesX;
+    private final int tilesY;
+    private final boolean[] done;
+    private BufferedImage canvas;
+    private Rectangle updated;
+
+    /**
+     * Холст для source и параметров key (строка, как у ResultCache); halo — радиус операции,
+     * border — продолжение за границей, которое операция на самом деле использует.
+     */
+    RegionProcessor(BufferedImage source, String key, int halo, BorderMode border) {
+        this.source = source;
+        this.key = key;
+        this.halo = halo;
+        this.wrap = border == BorderMode.WRAP;
+        this.tilesX = (source.getWidth() + TILE - 1) / TILE;
+        this.tilesY = (source.getHeight() + TILE - 1) / TILE;
+        this.done = new boolean[tilesX * tilesY];
+    }
+
+    /** Подходит ли холст для обработки source с параметрами key. */
+    boolean matches(BufferedImage source, String key) {
+        return this.source == source && this.key.equals(key);
+    }
+
+    /** Холст результата или null, пока ни одна область не посчитана. */
+    synchronized BufferedImage canvas() {
+        return canvas;
+    }
+
+    /**
+     * Прямоугольники из плиток области roi, которых ещё нет на холсте: непрерывные
+     * отрезки плиток строки, одинаковые в соседних строках, сливаются в один прямоугольник.
+     */
+    synchronized List<Rectangle> missing(Rectangle roi) {
+        Rectangle area = roi.intersection(new Rectangle(source.getWidth(), source.getHeight()));
+        List<Rectangle> regions = new ArrayList<>();
+        if (area.isEmpty()) {
+            return regions;
+        }
+        int tx0 = area.x / TILE, tx1 = (area.x + area.width - 1) / TILE;
+        int ty0 = area.y / TILE, ty1 = (area.y + area.height - 1) / TILE;
+
+        // Прямоугольники, которые ещё можно продолжить вниз, — из предыдущей строки плиток
+        List<Rectangle> open = new ArrayList<>();
+        for (int ty = ty0; ty <= ty1; ty++) {
+            List<Rectangle> next = new ArrayList<>();
+            int tx = tx0;
+            while (tx <= tx1) {
+                if (done[ty * tilesX + tx]) {
+                    tx++;
+                    continue;
+                }
+                int start = tx;
+                while (tx <= tx1 && !done[ty * tilesX + tx]) {
+                    tx++;
+                }
+                Rectangle run = new Rectangle(start, ty, tx - start, 1);
+                for (Rectangle previous : open) {
+                    if (previous.x == run.x && previous.width == run.width) {
+                        previous.height++;
+                        run = previous;
+                        break;
+                    }
+                }
+                if (run.y == ty) {
+                    regions.add(run);
+                }
+                next.add(run);
+            }
+            open = next;
+        }
+
+        // Из плиток в пиксели; крайние плитки обрезаются по изображению
+        Rectangle bounds = new Rectangle(source.getWidth(), source.getHeight());
+        for (Rectangle region : regions) {
+            region.setBounds(region.x * TILE, region.y * TILE, region.width * TILE, region.height * TILE);
+            Rectangle.intersect(region, bounds, region);
+        }
+        return regions;
+    }
+
+    /**
+     * Обрабатывает прямоугольники (из missing) операцией operation и записывает их
+     * на холст; возвращает холст. Каждый записанный прямоугольник сразу отмечается
+     * посчитанным, так что при отмене готовые части не пересчитываются. Если вырезка
+     * с ореолом покрывает всё изображение, записывается и отмечается весь результат.
+     */
+    BufferedImage run(List<Rectangle> regions, UnaryOperator<BufferedImage> operation) {
+        Rectangle bounds = new Rectangle(source.getWidth(), source.getHeight());
+        for (Rectangle region : regions) {
+            Rectangle crop = new Rectangle(region.x - halo, region.y - halo,
+                    region.width + 2 * halo, region.height + 2 * halo);
+            if (!wrap || crop.contains(bounds)) {
+                crop = crop.intersection(bounds);
+            }
+            Rectangle written = crop.equals(bounds) ? bounds : region;
+            BufferedImage result = operation.apply(crop.equals(bounds) ? source : copy(crop));
+
+            synchronized (this) {
+                if (canvas == null) {
+                    canvas = createCanvas(result.getType());
+                }
+                WritableRaster target = canvas.getRaster();
+                target.setDataElements(written.x, written.y, result.getRaster().createChild(
+                        written.x - crop.x, written.y - crop.y, written.width, written.height, 0, 0, null));
+                for (int ty = written.y / TILE; ty < (written.y + written.height + TILE - 1) / TILE; ty++) {
+                    for (int tx = written.x / TILE; tx < (written.x + written.width + TILE - 1) / TILE; tx++) {
+                        done[ty * tilesX + tx] = true;
+                    }
+                }
+                updated = updated == null ? new Rectangle(written) : updated.union(written);
+            }
+            if (written == bounds) {
+                break;
+            }
+        }
+        synchronized (this) {
+            return canvas;
+        }
+    }
+
+    /** Объединение прямоугольников, записанных на холст после предыдущего вызова, или null. */
+    synchronized Rectangle takeUpdated() {
+        Rectangle region = updated;
+        updated = null;
+        return region;
+    }
+
+    /**
+     * Вырезка исходного изображения того же (канонического) типа, без смещения растра.
+     * Часть вырезки за краем изображения (только для WRAP) заполняется периодически.
+     */
+    private BufferedImage copy(Rectangle crop) {
+        BufferedImage image = new BufferedImage(crop.width, crop.height, source.getType());
+        WritableRaster target = image.getRaster();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        // Куски вырезки, каждый из которых лежит в одном периоде изображения
+        for (int y = crop.y; y < crop.y + crop.height; ) {
+            int sy = Math.floorMod(y, height);
+            int rows = Math.min(crop.y + crop.height - y, height - sy);
+            for (int x = crop.x; x < crop.x + crop.width; ) {
+                int sx = Math.floorMod(x, width);
+                int columns = Math.min(crop.x + crop.width - x, width - sx);
+                target.setDataElements(x - crop.x, y - crop.y,
+                        source.getRaster().createChild(sx, sy, columns, rows, 0, 0, null));
+                x += columns;
+            }
+            y += rows;
+        }
+        return image;
+    }
+
+    /** Холст типа результата; вне обработанных областей — исходное изображение. */
+    private BufferedImage createCanvas(int type) {
+        BufferedImage image = new BufferedImage(source.getWidth(), source.getHeight(), type);
+        if (type == source.getType()) {
+            image.getRaster().setDataElements(0, 0, source.getRaster());
+        } else {
+            PixelBuffer gray = BufferPool.borrow(source.getWidth(), source.getHeight(), 1);
+            gray.drawGray(source);
+            gray.writeTo(image);
+            BufferPool.release(gray);
+        }
+        return image;
+    }
+}
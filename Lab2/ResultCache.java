@@ -0,0 +1,413 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Кэш готовых результатов обработки окна. Ключ — строка из идентификатора исходного файла
+ * и всех параметров, от которых зависит результат, поэтому возврат к прежним параметрам
+ * (или переключение фильтров туда и обратно) показывает результат без пересчёта.
+ *
+ * Результаты в памяти ограничены capacity байтами и вытесняются в порядке LRU. Если включена
+ * выгрузка на диск, вытесненный результат сжимается (Deflate, без потерь) во временный файл
+ * фоновым потоком и при следующем запросе читается с диска — это в разы быстрее пересчёта
+ * больших ядер. Файлы ограничены diskCapacity байтами и вытесняются так же. Пока вытесненный
+ * результат записывается, он остаётся доступным из памяти, так что на время записи объём
+ * может превысить capacity на одно изображение.
+ *
+ * Изображения в кэше общие с окном — изменять их нельзя. Доступ синхронизирован.
+ */
+final class ResultCache {
+
+    // Вторая четверть кучи после BufferPool: исходное изображение и рабочие буферы тоже в куче
+    private static final long DEFAULT_CAPACITY = Runtime.getRuntime().maxMemory() / 4;
+    private static final long DEFAULT_DISK_CAPACITY = 4L << 30;
+
+    /** Результат в памяти, на диске или в обоих местах сразу (уже выгружен и снова запрошен). */
+    private static final class Entry {
+        final int width;
+        final int height;
+        final int type;
+        final long bytes;
+        BufferedImage image;
+        // Учитывается ли image в memoryBytes; вытесненное изображение может ещё записываться
+        boolean resident;
+        Path file;
+        long fileBytes;
+
+        Entry(BufferedImage image) {
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.type = image.getType();
+            this.bytes = sizeOf(image);
+            this.image = image;
+        }
+    }
+
+    private static final Map<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Запись на диск — в одном фоновом потоке, чтобы не задерживать поток событий
+    private static final ExecutorService SPILL = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "result-cache-spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Состояние ниже защищено блокировкой ENTRIES
+    private static long capacity = DEFAULT_CAPACITY;
+    private static long diskCapacity = DEFAULT_DISK_CAPACITY;
+    private static boolean spillEnabled;
+    private static Path directory;
+    private static long memoryBytes;
+    private static long diskBytes;
+    private static long hits;
+    private static long diskHits;
+    private static long misses;
+
+    private ResultCache() {
+    }
+
+    /**
+     * Результат по ключу или null. Выгруженный результат читается с диска в вызывающем
+     * потоке (вызывается из фоновой обработки) и снова попадает в память.
+     */
+    static BufferedImage get(String key) {
+        Entry entry;
+        Path file;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            if (entry.image != null) {
+                hits++;
+                BufferedImage image = entry.image;
+                makeResident(entry);
+                return image;
+            }
+            file = entry.file;
+        }
+
+        BufferedImage image;
+        try {
+            image = read(file, entry);
+        } catch (IOException ex) {
+            // Файл удалён или повреждён: результат придётся посчитать заново
+            synchronized (ENTRIES) {
+                if (ENTRIES.get(key) == entry) {
+                    remove(key, entry);
+                }
+                misses++;
+            }
+            return null;
+        }
+
+        synchronized (ENTRIES) {
+            diskHits++;
+            if (ENTRIES.get(key) == entry && entry.image == null) {
+                entry.image = image;
+                makeResident(entry);
+            }
+        }
+        return image;
+    }
+
+    /** Запоминает результат; прежний результат с тем же ключом заменяется. */
+    static void put(String key, BufferedImage image) {
+        synchronized (ENTRIES) {
+            Entry previous = ENTRIES.remove(key);
+            if (previous != null) {
+                discard(previous);
+            }
+            Entry entry = new Entry(image);
+            ENTRIES.put(key, entry);
+            makeResident(entry);
+        }
+    }
+
+    /** Объём результатов в памяти, байт; превышение вытесняется сразу. */
+    static void setCapacity(long bytes) {
+        synchronized (ENTRIES) {
+            capacity = Math.max(0, bytes);
+            trim();
+        }
+    }
+
+    static void setDiskCapacity(long bytes) {
+        synchronized (ENTRIES) {
+            diskCapacity = Math.max(0, bytes);
+            trimDisk();
+        }
+    }
+
+    /** Включает выгрузку вытесненных результатов на диск; при выключении файлы удаляются. */
+    static void setSpillEnabled(boolean enabled) {
+        synchronized (ENTRIES) {
+            spillEnabled = enabled;
+            if (enabled) {
+                return;
+            }
+            Iterator<Entry> entries = ENTRIES.values().iterator();
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                deleteFile(entry);
+                if (entry.image == null) {
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    static long hits() {
+        synchronized (ENTRIES) {
+            return hits;
+        }
+    }
+
+    /** Результаты, прочитанные с диска (в hits() не входят). */
+    static long diskHits() {
+        synchronized (ENTRIES) {
+            return diskHits;
+        }
+    }
+
+    static long misses() {
+        synchronized (ENTRIES) {
+            return misses;
+        }
+    }
+
+    static long memoryBytes() {
+        synchronized (ENTRIES) {
+            return memoryBytes;
+        }
+    }
+
+    static long diskBytes() {
+        synchronized (ENTRIES) {
+            return diskBytes;
+        }
+    }
+
+    private static void makeResident(Entry entry) {
+        if (!entry.resident) {
+            entry.resident = true;
+            memoryBytes += entry.bytes;
+        }
+        trim();
+    }
+
+    /**
+     * Вытесняет из памяти давно не запрашивавшиеся результаты, пока объём не станет
+     * не больше capacity. Результат, уже записанный на диск, просто отпускается, остальные
+     * ставятся в очередь на запись или, без выгрузки, удаляются.
+     */
+    private static void trim() {
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Entry> item : ENTRIES.entrySet()) {
+            if (memoryBytes <= capacity) {
+                break;
+            }
+            Entry entry = item.getValue();
+            if (!entry.resident) {
+                continue;
+            }
+            entry.resident = false;
+            memoryBytes -= entry.bytes;
+            if (entry.file != null) {
+                entry.image = null;
+            } else if (spillEnabled) {
+                spill(item.getKey(), entry);
+            } else {
+                removed.add(item.getKey());
+            }
+        }
+        for (String key : removed) {
+            remove(key, ENTRIES.get(key));
+        }
+    }
+
+    private static void trimDisk() {
+        Iterator<Entry> entries = ENTRIES.values().iterator();
+        while (diskBytes > diskCapacity && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.file == null) {
+                continue;
+            }
+            deleteFile(entry);
+            if (entry.image == null) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static void spill(String key, Entry entry) {
+        BufferedImage image = entry.image;
+        SPILL.execute(() -> {
+            Path file = null;
+            try {
+                file = write(image);
+            } catch (IOException ex) {
+                // Диск недоступен: результат просто вытесняется
+            }
+
+            synchronized (ENTRIES) {
+                // Выгрузку могли выключить, пока файл записывался
+                boolean current = ENTRIES.get(key) == entry && entry.image == image;
+                if (file == null || !current || !spillEnabled) {
+                    if (file != null) {
+                        deleteQuietly(file);
+                    }
+                    if (current && !entry.resident) {
+                        remove(key, entry);
+                    }
+                    return;
+                }
+                entry.file = file;
+                entry.fileBytes = sizeOnDisk(file);
+                diskBytes += entry.fileBytes;
+                // Результат могли снова запросить, пока он записывался: тогда он остаётся в памяти
+                if (!entry.resident) {
+                    entry.image = null;
+                }
+                trimDisk();
+            }
+        });
+    }
+
+    private static void remove(String key, Entry entry) {
+        ENTRIES.remove(key);
+        discard(entry);
+    }
+
+    private static void discard(Entry entry) {
+        if (entry.resident) {
+            entry.resident = false;
+            memoryBytes -= entry.bytes;
+        }
+        entry.image = null;
+        deleteFile(entry);
+    }
+
+    private static void deleteFile(Entry entry) {
+        if (entry.file != null) {
+            deleteQuietly(entry.file);
+            diskBytes -= entry.fileBytes;
+            entry.file = null;
+            entry.fileBytes = 0;
+        }
+    }
+
+    /** Пиксели без заголовка: по байту на канал, строки подряд, сжатие Deflate. */
+    private static Path write(BufferedImage image) throws IOException {
+        Path file;
+        synchronized (ENTRIES) {
+            if (directory == null) {
+                directory = Files.createTempDirectory("lab2-results");
+                directory.toFile().deleteOnExit();
+            }
+            file = Files.createTempFile(directory, "result", ".bin");
+        }
+        file.toFile().deleteOnExit();
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // Быстрое сжатие: цель — читать с диска быстрее, чем пересчитывать, а не минимальный размер
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)), deflater, 1 << 16)) {
+            if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                byte[] row = new byte[3 * width];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0, i = y * width; x < width; x++, i++) {
+                        row[3 * x] = (byte) (data[i] >> 16);
+                        row[3 * x + 1] = (byte) (data[i] >> 8);
+                        row[3 * x + 2] = (byte) data[i];
+                    }
+                    out.write(row);
+                }
+            } else {
+                out.write(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+            }
+        } catch (IOException ex) {
+            deleteQuietly(file);
+            throw ex;
+        } finally {
+            deflater.end();
+        }
+        return file;
+    }
+
+    private static BufferedImage read(Path file, Entry entry) throws IOException {
+        BufferedImage image = new BufferedImage(entry.width, entry.height, entry.type);
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), inflater, 1 << 16)) {
+            if (entry.type == BufferedImage.TYPE_INT_RGB) {
+                int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                byte[] row = new byte[3 * entry.width];
+                for (int y = 0; y < entry.height; y++) {
+                    readFully(in, row);
+                    for (int x = 0, i = y * entry.width; x < entry.width; x++, i++) {
+                        data[i] = ((row[3 * x] & 0xFF) << 16) | ((row[3 * x + 1] & 0xFF) << 8)
+                                | (row[3 * x + 2] & 0xFF);
+                    }
+                }
+            } else {
+                readFully(in, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+            }
+        } finally {
+            inflater.end();
+        }
+        return image;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        if (in.readNBytes(buffer, 0, buffer.length) != buffer.length) {
+            throw new EOFException("Файл результата обрезан");
+        }
+    }
+
+    private static long sizeOnDisk(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // Файл во временном каталоге будет удалён при выходе
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        long pixels = (long) image.getWidth() * image.getHeight();
+        int type = image.getType();
+        return type == BufferedImage.TYPE_BYTE_GRAY ? pixels
+                : type == BufferedImage.TYPE_3BYTE_BGR ? 3 * pixels : 4 * pixels;
+    }
+}
@@ -0,0 +1,503 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Потоковый конвейер операций над каналом изображения.
+ * Этапы обмениваются не целыми изображениями, а кольцевыми буферами строк: этап хранит
+ * только 2 * radius + 2 последние строки своего выхода, которые нужны следующему этапу.
+ * Строки вычисляются по запросу, поэтому составная операция (например, открытие или
+ * Гаусс с последующим закрытием) проходит по памяти изображения один раз.
+ * Граница всегда BorderMode.CLAMP: полосы и части изображения при обработке по частям
+ * читают ореол из соседних строк, а за краем изображения — повторяют крайнюю строку.
+ */
+final class RowPipeline {
+
+    /** Доступ к строкам входа этапа; номер строки приводится к [0, height) повторением краёв. */
+    interface Rows {
+        byte[] row(int y);
+    }
+
+    /** Вычисление одной строки выхода этапа; экземпляр принадлежит одной полосе. */
+    interface RowOperator {
+        void computeRow(Rows input, int y, byte[] out);
+    }
+
+    /** Этап конвейера: строка y выхода зависит от строк входа y - radius .. y + radius. */
+    interface Stage {
+        int radius();
+
+        RowOperator newOperator(int width, int height);
+    }
+
+    private static final Pattern STAGE_PATTERN = Pattern.compile("([a-z]+)((?::[^:\\s|]+)*)");
+    private static final Pattern ELEMENT_PATTERN = Pattern.compile("(square|disk|cross)(\\d*)");
+
+    private final List<Stage> stages;
+
+    RowPipeline(List<Stage> stages) {
+        this.stages = new ArrayList<>(stages);
+    }
+
+    /** Суммарный радиус этапов: столько строк ореола полоса читает из исходного канала. */
+    int radius() {
+        int radius = 0;
+        for (Stage stage : stages) {
+            radius += stage.radius();
+        }
+        return radius;
+    }
+
+    /** Вычисляет строки [y0, y1) результата всей цепочки для канала src. */
+    void run(byte[] src, byte[] dst, int width, int height, int y0, int y1) {
+        if (stages.isEmpty()) {
+            System.arraycopy(src, y0 * width, dst, y0 * width, (y1 - y0) * width);
+            return;
+        }
+
+        Rows input = new Node(null, (in, y, out) -> System.arraycopy(src, y * width, out, 0, width),
+                capacity(stages.get(0)), width, height);
+        for (int i = 0; i < stages.size() - 1; i++) {
+            input = new Node(input, stages.get(i).newOperator(width, height),
+                    capacity(stages.get(i + 1)), width, height);
+        }
+
+        RowOperator last = stages.get(stages.size() - 1).newOperator(width, height);
+        byte[] row = new byte[width];
+        for (int y = y0; y < y1; y++) {
+            last.computeRow(input, y, row);
+            System.arraycopy(row, 0, dst, y * width, width);
+        }
+    }
+
+    /** Строк в буфере этапа, который читает consumer: его окно плюс уходящая строка. */
+    private static int capacity(Stage consumer) {
+        return 2 * consumer.radius() + 2;
+    }
+
+    /**
+     * Разбирает описание цепочки, например "gauss:5:1.0 closing:disk9".
+     * Этапы разделяются пробелами или '|': gauss:размер:sigma, average:размер, median:размер,
+     * threshold:порог, erosion, dilation, opening, closing с элементом square3, square5, disk, cross
+     * (элементы из интерфейса) или squareN, diskN, crossN.
+     */
+    static RowPipeline parse(String spec) {
+        List<Stage> stages = new ArrayList<>();
+
+        for (String token : spec.trim().toLowerCase().split("[\\s|]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = STAGE_PATTERN.matcher(token);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Не удалось разобрать этап: " + token);
+            }
+            String name = matcher.group(1);
+            String[] args = matcher.group(2).isEmpty() ? new String[0] : matcher.group(2).substring(1).split(":");
+
+            switch (name) {
+                case "gauss":
+                    stages.add(gaussian(parseSize(args, 0, token), args.length > 1 ? parseSigma(args[1], token) : 1.0));
+                    break;
+                case "average":
+                    stages.add(average(parseSize(args, 0, token)));
+                    break;
+                case "median":
+                    stages.add(median(parseSize(args, 0, token)));
+                    break;
+                case "threshold":
+                    stages.add(threshold(parseThreshold(args, token)));
+                    break;
+                case "erosion":
+                    stages.add(erosion(parseElement(args, token)));
+                    break;
+                case "dilation":
+                    stages.add(dilation(parseElement(args, token)));
+                    break;
+                case "opening":
+                    boolean[][] opening = parseElement(args, token);
+                    stages.add(erosion(opening));
+                    stages.add(dilation(opening));
+                    break;
+                case "closing":
+                    boolean[][] closing = parseElement(args, token);
+                    stages.add(dilation(closing));
+                    stages.add(erosion(closing));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Неизвестная операция: " + name);
+            }
+        }
+
+        return new RowPipeline(stages);
+    }
+
+    private static int parseSize(String[] args, int index, String token) {
+        if (args.length <= index) {
+            throw new IllegalArgumentException("Не указан размер ядра: " + token);
+        }
+        try {
+            int size = Integer.parseInt(args[index]);
+            if (size < 1 || size % 2 == 0) {
+                throw new IllegalArgumentException("Размер ядра должен быть нечётным: " + token);
+            }
+            return size;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Неверный размер ядра: " + token);
+        }
+    }
+
+    private static int parseThreshold(String[] args, String token) {
+        try {
+            int threshold = Integer.parseInt(args.length > 0 ? args[0] : "");
+            if (threshold < 0 || threshold > 255) {
+                throw new IllegalArgumentException("Порог должен быть от 0 до 255: " + token);
+            }
+            return threshold;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Неверный порог: " + token);
+        }
+    }
+
+    private static double parseSigma(String value, String token) {
+        try {
+            double sigma = Double.parseDouble(value);
+            if (sigma <= 0) {
+                throw new IllegalArgumentException("Sigma должна быть положительной: " + token);
+            }
+            return sigma;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Неверное значение sigma: " + token);
+        }
+    }
+
+    private static boolean[][] parseElement(String[] args, String token) {
+        Matcher matcher = ELEMENT_PATTERN.matcher(args.length > 0 ? args[0] : "");
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Неверный структурный элемент: " + token);
+        }
+        String shape = matcher.group(1);
+        int size = matcher.group(2).isEmpty() ? ("square".equals(shape) ? 3 : 5) : Integer.parseInt(matcher.group(2));
+        if (size < 1 || size % 2 == 0) {
+            throw new IllegalArgumentException("Размер элемента должен быть нечётным: " + token);
+        }
+        return Morphology.createElement(shape, size);
+    }
+
+    /** Гауссовский фильтр: сепарабельная свёртка, как Convolution.separable. */
+    static Stage gaussian(int size, double sigma) {
+        double[] kernel = KernelCache.gaussian1D(size, sigma);
+        return stage(size / 2, (width, height) -> new SeparableOperator(kernel, width, height));
+    }
+
+    /** Усредняющий фильтр на скользящих суммах, как BoxFilter. */
+    static Stage average(int size) {
+        return stage(size / 2, (width, height) -> new BoxOperator(size, width, height));
+    }
+
+    /** Медианный фильтр на скользящих гистограммах, как MedianFilter.apply. */
+    static Stage median(int size) {
+        return stage(size / 2, (width, height) -> new MedianOperator(size, width, height));
+    }
+
+    /**
+     * Бинаризация, как BinaryMask.threshold: пиксели со значением >= threshold становятся 255,
+     * остальные — 0. Морфология после неё даёт тот же результат, что бинарный режим.
+     */
+    static Stage threshold(int threshold) {
+        return stage(0, (width, height) -> (input, y, out) -> {
+            byte[] row = input.row(y);
+            for (int x = 0; x < width; x++) {
+                out[x] = (byte) ((row[x] & 0xFF) >= threshold ? 255 : 0);
+            }
+        });
+    }
+
+    static Stage erosion(boolean[][] element) {
+        int[][] rectangles = Morphology.decompose(element);
+        return stage(element.length / 2, (width, height) -> new MorphologyOperator(rectangles, true, width, height));
+    }
+
+    static Stage dilation(boolean[][] element) {
+        int[][] rectangles = Morphology.decompose(element);
+        return stage(element.length / 2, (width, height) -> new MorphologyOperator(rectangles, false, width, height));
+    }
+
+    private interface OperatorFactory {
+        RowOperator create(int width, int height);
+    }
+
+    private static Stage stage(int radius, OperatorFactory factory) {
+        return new Stage() {
+            @Override
+            public int radius() {
+                return radius;
+            }
+
+            @Override
+            public RowOperator newOperator(int width, int height) {
+                return factory.create(width, height);
+            }
+        };
+    }
+
+    /** Кольцевой буфер строк выхода этапа. */
+    private static final class Node implements Rows {
+        private final Rows input;
+        private final RowOperator operator;
+        private final byte[][] ring;
+        private final int[] ringRow;
+        private final int height;
+
+        Node(Rows input, RowOperator operator, int capacity, int width, int height) {
+            this.input = input;
+            this.operator = operator;
+            this.ring = new byte[capacity][width];
+            this.ringRow = new int[capacity];
+            this.height = height;
+            Arrays.fill(ringRow, -1);
+        }
+
+        @Override
+        public byte[] row(int y) {
+            int row = Math.min(Math.max(y, 0), height - 1);
+            int slot = row % ring.length;
+            if (ringRow[slot] != row) {
+                operator.computeRow(input, row, ring[slot]);
+                ringRow[slot] = row;
+            }
+            return ring[slot];
+        }
+    }
+
+    private static final class SeparableOperator implements RowOperator {
+        private final double[] kernel;
+        private final int width;
+        private final int height;
+        private final double[][] rows;
+        private final int[] slotRow;
+        private final double[] acc;
+
+        SeparableOperator(double[] kernel, int width, int height) {
+            this.kernel = kernel;
+            this.width = width;
+            this.height = height;
+            this.rows = new double[kernel.length][width];
+            this.slotRow = new int[kernel.length];
+            this.acc = new double[width];
+            Arrays.fill(slotRow, -1);
+        }
+
+        @Override
+        public void computeRow(Rows input, int y, byte[] out) {
+            int radius = kernel.length / 2;
+            Arrays.fill(acc, 0);
+
+            for (int ky = -radius; ky <= radius; ky++) {
+                int py = Math.min(Math.max(y + ky, 0), height - 1);
+                int slot = py % kernel.length;
+                if (slotRow[slot] != py) {
+                    Convolution.horizontalPass(input.row(py), 0, width, kernel, BorderMode.CLAMP, rows[slot]);
+                    slotRow[slot] = py;
+                }
+
+                double weight = kernel[ky + radius];
+                double[] row = rows[slot];
+                for (int x = 0; x < width; x++) {
+                    acc[x] += row[x] * weight;
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                out[x] = (byte) Math.min(Math.max((int) acc[x], 0), 255);
+            }
+        }
+    }
+
+    private static final class BoxOperator implements RowOperator {
+        private final int size;
+        private final int width;
+        private final int height;
+        private final int[] columnSums;
+        private final int[] rowSums;
+        private int lastRow = -2;
+
+        BoxOperator(int size, int width, int height) {
+            this.size = size;
+            this.width = width;
+            this.height = height;
+            this.columnSums = new int[width];
+            this.rowSums = new int[width];
+        }
+
+        @Override
+        public void computeRow(Rows input, int y, byte[] out) {
+            int radius = size / 2;
+
+            if (y == lastRow + 1) {
+                int outgoing = Math.max(y - 1 - radius, 0);
+                int incoming = Math.min(y + radius, height - 1);
+                if (outgoing != incoming) {
+                    addRow(input.row(outgoing), -1);
+                    addRow(input.row(incoming), 1);
+                }
+            } else {
+                Arrays.fill(columnSums, 0);
+                for (int ky = -radius; ky <= radius; ky++) {
+                    addRow(input.row(y + ky), 1);
+                }
+            }
+            lastRow = y;
+
+            int area = size * size;
+            for (int x = 0; x < width; x++) {
+                out[x] = (byte) (columnSums[x] / area);
+            }
+        }
+
+        private void addRow(byte[] row, int sign) {
+            BoxFilter.horizontalSums(row, 0, width, size / 2, BorderMode.CLAMP, rowSums);
+            for (int x = 0; x < width; x++) {
+                columnSums[x] += sign * rowSums[x];
+            }
+        }
+    }
+
+    private static final class MedianOperator implements RowOperator {
+        private final int radius;
+        private final int height;
+        private final MedianFilter.Window window;
+        private int lastRow = -2;
+
+        MedianOperator(int size, int width, int height) {
+            this.radius = size / 2;
+            this.height = height;
+            this.window = new MedianFilter.Window(width, size, BorderMode.CLAMP);
+        }
+
+        @Override
+        public void computeRow(Rows input, int y, byte[] out) {
+            if (y == lastRow + 1) {
+                int outgoing = Math.max(y - 1 - radius, 0);
+                int incoming = Math.min(y + radius, height - 1);
+                if (outgoing != incoming) {
+                    window.addRow(input.row(outgoing), 0, -1);
+                    window.addRow(input.row(incoming), 0, 1);
+                }
+            } else {
+                window.clear();
+                for (int ky = -radius; ky <= radius; ky++) {
+                    window.addRow(input.row(y + ky), 0, 1);
+                }
+            }
+            lastRow = y;
+
+            window.filterRow(out, 0);
+        }
+    }
+
+    /**
+     * Эрозия/дилатация по элементу, разложенному на прямоугольники. Горизонтальный проход —
+     * van Herk / Gil-Werman по каждой строке входа. Вертикальный экстремум окна из L строк
+     * берётся из разреженной таблицы: уровень k хранит экстремум 2^k подряд идущих строк,
+     * а окно покрывается двумя перекрывающимися отрезками длины 2^k <= L. Уровни считаются
+     * лениво и хранятся в кольцевых буферах высотой с элемент.
+     */
+    private static final class MorphologyOperator implements RowOperator {
+        private final boolean minimum;
+        private final int width;
+        private final int height;
+        private final int[][][] groups;
+        private final byte[][][][] levels;
+        private final int[][][] levelRows;
+        private final int[] lineG;
+        private final int[] lineH;
+
+        MorphologyOperator(int[][] rectangles, boolean minimum, int width, int height) {
+            this.minimum = minimum;
+            this.width = width;
+            this.height = height;
+
+            // Группы прямоугольников с одинаковым горизонтальным отрезком делят таблицу уровней
+            List<List<int[]>> grouped = new ArrayList<>();
+            for (int[] rectangle : rectangles) {
+                List<int[]> group = null;
+                for (List<int[]> candidate : grouped) {
+                    if (candidate.get(0)[0] == rectangle[0] && candidate.get(0)[1] == rectangle[1]) {
+                        group = candidate;
+                    }
+                }
+                if (group == null) {
+                    group = new ArrayList<>();
+                    grouped.add(group);
+                }
+                group.add(rectangle);
+            }
+
+            groups = new int[grouped.size()][][];
+            levels = new byte[grouped.size()][][][];
+            levelRows = new int[grouped.size()][][];
+            int maxLength = 1;
+            for (int g = 0; g < groups.length; g++) {
+                groups[g] = grouped.get(g).toArray(new int[0][]);
+                int dyMin = Integer.MAX_VALUE, dyMax = Integer.MIN_VALUE, longest = 1;
+                for (int[] r : groups[g]) {
+                    dyMin = Math.min(dyMin, r[2]);
+                    dyMax = Math.max(dyMax, r[3]);
+                    longest = Math.max(longest, r[3] - r[2] + 1);
+                    maxLength = Math.max(maxLength, r[1] - r[0] + 1);
+                }
+                int capacity = dyMax - dyMin + 2;
+                int levelCount = 32 - Integer.numberOfLeadingZeros(longest);
+                levels[g] = new byte[levelCount][capacity][width];
+                levelRows[g] = new int[levelCount][capacity];
+                for (int[] rows : levelRows[g]) {
+                    Arrays.fill(rows, Integer.MIN_VALUE);
+                }
+            }
+
+            lineG = new int[width + maxLength];
+            lineH = new int[width + maxLength];
+        }
+
+        @Override
+        public void computeRow(Rows input, int y, byte[] out) {
+            Arrays.fill(out, (byte) (minimum ? 255 : 0));
+
+            for (int g = 0; g < groups.length; g++) {
+                for (int[] r : groups[g]) {
+                    int length = r[3] - r[2] + 1;
+                    int level = 31 - Integer.numberOfLeadingZeros(length);
+                    int span = 1 << level;
+                    byte[] first = level(input, g, level, y + r[2]);
+                    Morphology.combineRows(out, 0, first, 0, out, 0, width, minimum);
+                    byte[] second = level(input, g, level, y + r[3] - span + 1);
+                    Morphology.combineRows(out, 0, second, 0, out, 0, width, minimum);
+                }
+            }
+        }
+
+        /** Экстремум горизонтальных проходов строк row .. row + 2^level - 1 (с повторением краёв). */
+        private byte[] level(Rows input, int group, int level, int row) {
+            byte[][] ring = levels[group][level];
+            int slot = Math.floorMod(row, ring.length);
+            if (levelRows[group][level][slot] == row) {
+                return ring[slot];
+            }
+
+            if (level == 0) {
+                int[] r = groups[group][0];
+                Morphology.runningExtremum(input.row(Math.min(Math.max(row, 0), height - 1)), 0, width,
+                        r[0], r[1], minimum, BorderMode.CLAMP, lineG, lineH, ring[slot], 0);
+            } else {
+                byte[] upper = level(input, group, level - 1, row);
+                byte[] lower = level(input, group, level - 1, row + (1 << (level - 1)));
+                Morphology.combineRows(upper, 0, lower, 0, ring[slot], 0, width, minimum);
+            }
+            levelRows[group][level][slot] = row;
+            return ring[slot];
+        }
+    }
+}
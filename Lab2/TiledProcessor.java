@@ -0,0 +1,924 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Обработка изображений, не помещающихся в память, полосами строк на всю ширину.
+ * Полоса читается из файла вместе с ореолом в radius строк сверху и снизу, обрабатывается
+ * конвейером RowPipeline и сразу отдаётся записи, поэтому пиковая память определяется
+ * высотой полосы, а не размером изображения. Полоса на всю ширину не требует ореола по
+ * горизонтали, а на краях изображения повторение крайних строк полосы совпадает с
+ * повторением крайних строк изображения, так что результат не отличается от обработки целиком.
+ *
+ * Чтение: PGM/PPM (P5/P6, 8 бит) — через отображение файла в память; PNG без чересстрочной
+ * развёртки — собственным декодером, который распаковывает строки по порядку за один проход
+ * по файлу; остальные форматы — ImageReader.setSourceRegion. TIFF и BMP при этом читают только
+ * нужные строки, а JPEG, GIF и чересстрочные PNG распаковываются с начала файла для каждой
+ * полосы, поэтому такие изображения больше MAX_REREAD_STRIPS полос не принимаются.
+ *
+ * Запись: PGM/PPM пишутся построчно; PNG, TIFF и BMP — стандартными ImageWriter, которые
+ * запрашивают у изображения строки по порядку, а полосы вычисляются по этим запросам.
+ * JPEG-писатель запрашивает всё изображение сразу и потому не поддерживается.
+ */
+final class TiledProcessor implements Closeable {
+
+    // Целевой размер полосы исходных данных: все буферы полосы занимают несколько таких объёмов
+    private static final long TARGET_STRIP_BYTES = 16L << 20;
+    private static final int MIN_STRIP_ROWS = 64;
+    // Чтение с начала файла для каждой полосы стоит 1 + 2 + ... + n полос: при 8 полосах —
+    // четыре с половиной распаковки изображения, дальше растёт квадратично
+    private static final int MAX_REREAD_STRIPS = 8;
+
+    /** Источник полос строк изображения. */
+    private interface StripSource extends Closeable {
+        int width();
+
+        int height();
+
+        int channels();
+
+        /** Строки [y0, y1) всех каналов. */
+        PixelBuffer read(int y0, int y1) throws IOException;
+
+        /** Каждая полоса распаковывается с начала файла. */
+        boolean rereadsFromStart();
+    }
+
+    private final StripSource source;
+    private final RowPipeline pipeline;
+    private final boolean grayscale;
+    private final int channels;
+    private final int stripRows;
+
+    /**
+     * Открывает файл и читает только его заголовок.
+     * grayscale — перевести изображение в полутоновое перед обработкой (для морфологии).
+     */
+    TiledProcessor(File input, RowPipeline pipeline, boolean grayscale) throws IOException {
+        this.source = open(input);
+        this.pipeline = pipeline;
+        this.grayscale = grayscale;
+        this.channels = grayscale ? 1 : source.channels();
+
+        long rowBytes = (long) source.width() * source.channels();
+        int rows = (int) Math.min(Integer.MAX_VALUE, TARGET_STRIP_BYTES / Math.max(1, rowBytes));
+        this.stripRows = Math.min(source.height(), Math.max(rows, Math.max(MIN_STRIP_ROWS, 2 * pipeline.radius())));
+
+        if (source.rereadsFromStart() && stripCount() > MAX_REREAD_STRIPS) {
+            source.close();
+            throw new IOException("Изображение " + source.width() + " x " + source.height() + " в этом формате "
+                    + "по частям читается слишком долго: каждая полоса распаковывается с начала файла. "
+                    + "Сохраните его в TIFF, PGM/PPM или PNG без чересстрочной развёртки");
+        }
+    }
+
+    private static StripSource open(File input) throws IOException {
+        if (isNetpbm(input)) {
+            return new NetpbmSource(input);
+        }
+        if (extension(input).equals("png")) {
+            PngSource png = new PngSource(input);
+            if (!png.interlaced) {
+                return png;
+            }
+            // Строки чересстрочного PNG разбросаны по семи проходам — по порядку их не прочитать
+            png.close();
+        }
+        return new ReaderSource(input);
+    }
+
+    int width() {
+        return source.width();
+    }
+
+    int height() {
+        return source.height();
+    }
+
+    int stripCount() {
+        return (source.height() + stripRows - 1) / stripRows;
+    }
+
+    /** Обрабатывает изображение и записывает результат в output; формат — по расширению. */
+    void writeTo(File output, ParallelExecutor executor) throws IOException {
+        String format = extension(output);
+        if (format.equals("pgm") || format.equals("ppm")) {
+            writeNetpbm(output, executor);
+            return;
+        }
+        if (format.equals("jpg") || format.equals("jpeg")) {
+            throw new IOException("JPEG не поддерживает запись по частям, выберите PNG, TIFF, BMP или PGM/PPM");
+        }
+        if (format.equals("tif")) {
+            format = "tiff";
+        }
+
+        Files.deleteIfExists(output.toPath());
+        if (!ImageIO.write(new StripImage(executor), format, output)) {
+            throw new IOException("Нет записи для формата " + format);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /** Обработанные строки [y0, y1): читается полоса с ореолом, результат — только эти строки. */
+    private PixelBuffer processStrip(int y0, int y1, ParallelExecutor executor) throws IOException {
+        int radius = pipeline.radius();
+        int top = Math.max(0, y0 - radius);
+        int bottom = Math.min(source.height(), y1 + radius);
+        PixelBuffer src = source.read(top, bottom);
+        if (grayscale && src.channels() != 1) {
+            src = toGray(src);
+        }
+        PixelBuffer dst = src.createCompatible();
+
+        int width = src.width;
+        int stripHeight = src.height;
+        int offset = y0 - top;
+        PixelBuffer input = src;
+        executor.forEachBand(channels, y1 - y0, radius, (c, a, b) ->
+                pipeline.run(input.planes[c], dst.planes[c], width, stripHeight, a + offset, b + offset));
+
+        PixelBuffer result = new PixelBuffer(width, y1 - y0, channels);
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(dst.planes[c], offset * width, result.planes[c], 0, (y1 - y0) * width);
+        }
+        return result;
+    }
+
+    /** Полутоновое преобразование так же, как в Main.convertToGrayScale. */
+    private static PixelBuffer toGray(PixelBuffer color) {
+        BufferedImage rgb = new BufferedImage(color.width, color.height, BufferedImage.TYPE_INT_RGB);
+        color.writeTo(rgb);
+        PixelBuffer gray = new PixelBuffer(color.width, color.height, 1);
+        gray.drawGray(rgb);
+        return gray;
+    }
+
+    private void writeNetpbm(File output, ParallelExecutor executor) throws IOException {
+        int width = source.width();
+        int height = source.height();
+        String header = (channels == 1 ? "P5" : "P6") + "\n" + width + " " + height + "\n255\n";
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16)) {
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            byte[] row = new byte[width * channels];
+            for (int y0 = 0; y0 < height; y0 += stripRows) {
+                int y1 = Math.min(height, y0 + stripRows);
+                PixelBuffer strip = processStrip(y0, y1, executor);
+                for (int y = 0; y < strip.height; y++) {
+                    for (int c = 0; c < channels; c++) {
+                        byte[] plane = strip.planes[c];
+                        for (int x = 0, i = c; x < width; x++, i += channels) {
+                            row[i] = plane[y * width + x];
+                        }
+                    }
+                    out.write(row);
+                }
+            }
+        }
+    }
+
+    private static boolean isNetpbm(File file) {
+        String extension = extension(file);
+        return extension.equals("pgm") || extension.equals("ppm");
+    }
+
+    private static String extension(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Результат обработки как RenderedImage из полос-плиток на всю ширину. Плитки вычисляются
+     * при запросе, хранится только последняя: писатели запрашивают строки по порядку,
+     * поэтому каждая полоса вычисляется один раз.
+     */
+    private final class StripImage implements RenderedImage {
+        private final ParallelExecutor executor;
+        private final ColorModel colorModel;
+        private int cachedStrip = -1;
+        private Raster cachedTile;
+
+        StripImage(ParallelExecutor executor) {
+            this.executor = executor;
+            int type = channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+            this.colorModel = new BufferedImage(1, 1, type).getColorModel();
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tileY != cachedStrip) {
+                int y0 = tileY * stripRows;
+                int y1 = Math.min(source.height(), y0 + stripRows);
+                PixelBuffer strip;
+                try {
+                    strip = processStrip(y0, y1, executor);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                BufferedImage image = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(
+                        strip.width, strip.height), false, null);
+                strip.writeTo(image);
+                cachedTile = image.getRaster().createTranslatedChild(0, y0);
+                cachedStrip = tileY;
+            }
+            return cachedTile;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster result = colorModel.createCompatibleWritableRaster(rect.width, rect.height)
+                    .createWritableTranslatedChild(rect.x, rect.y);
+            int last = (rect.y + rect.height - 1) / stripRows;
+            for (int tileY = rect.y / stripRows; tileY <= last; tileY++) {
+                Raster tile = getTile(0, tileY);
+                Rectangle part = tile.getBounds().intersection(rect);
+                result.setRect(tile.createChild(part.x, part.y, part.width, part.height, part.x, part.y, null));
+            }
+            return result;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, getWidth(), getHeight()));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                return (WritableRaster) getData();
+            }
+            raster.setRect(getData(raster.getBounds()));
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return colorModel.createCompatibleSampleModel(getTileWidth(), getTileHeight());
+        }
+
+        @Override
+        public int getWidth() {
+            return source.width();
+        }
+
+        @Override
+        public int getHeight() {
+            return source.height();
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return stripCount();
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return source.width();
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripRows;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+
+    /** Чтение областей через ImageReader.setSourceRegion. */
+    private static final class ReaderSource implements StripSource {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final int channels;
+        private final boolean rereads;
+
+        ReaderSource(File file) throws IOException {
+            stream = ImageIO.createImageInputStream(file);
+            if (stream == null) {
+                throw new IOException("Не удалось открыть " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                throw new IOException("Неизвестный формат изображения: " + file.getName());
+            }
+            reader = readers.next();
+            reader.setInput(stream, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+
+            ColorModel model = reader.getImageTypes(0).next().getColorModel();
+            channels = ImageFormat.isGray(model) ? 1 : 3;
+            // Только TIFF и BMP переходят к нужным строкам, не распаковывая предыдущие
+            String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+            rereads = !(format.equals("tif") || format.equals("tiff") || format.equals("bmp"));
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public int channels() {
+            return channels;
+        }
+
+        @Override
+        public PixelBuffer read(int y0, int y1) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y0, width, y1 - y0));
+            // Полутоновые форматы любой разрядности и серые палитры приводятся к TYPE_BYTE_GRAY
+            return PixelBuffer.fromImage(ImageFormat.normalize(reader.read(0, param)));
+        }
+
+        @Override
+        public boolean rereadsFromStart() {
+            return rereads;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    /** 8-битные PGM (P5) и PPM (P6): строки читаются из отображённого в память файла. */
+    private static final class NetpbmSource implements StripSource {
+        private final FileChannel channel;
+        private final int width;
+        private final int height;
+        private final int channels;
+        private final long dataOffset;
+
+        NetpbmSource(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 1024));
+                String magic = token(head);
+                if (!magic.equals("P5") && !magic.equals("P6")) {
+                    throw new IOException("Поддерживаются только двоичные PGM (P5) и PPM (P6)");
+                }
+                channels = magic.equals("P5") ? 1 : 3;
+                width = Integer.parseInt(token(head));
+                height = Integer.parseInt(token(head));
+                if (!token(head).equals("255")) {
+                    throw new IOException("Поддерживаются только 8-битные PGM/PPM");
+                }
+                // После maxval — ровно один пробельный символ, затем данные
+                dataOffset = head.position() + 1;
+                if (channel.size() < dataOffset + (long) width * height * channels) {
+                    throw new IOException("Файл короче, чем указано в заголовке");
+                }
+            } catch (NumberFormatException ex) {
+                channel.close();
+                throw new IOException("Повреждённый заголовок PGM/PPM", ex);
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /** Следующее слово заголовка; комментарии от # до конца строки пропускаются. */
+        private static String token(MappedByteBuffer head) throws IOException {
+            StringBuilder token = new StringBuilder();
+            while (head.hasRemaining()) {
+                char c = (char) head.get(head.position());
+                if (c == '#') {
+                    while (head.hasRemaining() && head.get() != '\n') {
+                        // пропускаем комментарий
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    if (token.length() > 0) {
+                        return token.toString();
+                    }
+                    head.get();
+                } else {
+                    token.append(c);
+                    head.get();
+                }
+            }
+            throw new IOException("Повреждённый заголовок PGM/PPM");
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public int channels() {
+            return channels;
+        }
+
+        @Override
+        public PixelBuffer read(int y0, int y1) throws IOException {
+            PixelBuffer strip = new PixelBuffer(width, y1 - y0, channels);
+            long rowBytes = (long) width * channels;
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataOffset + y0 * rowBytes, (y1 - y0) * rowBytes);
+
+            byte[] row = new byte[(int) rowBytes];
+            for (int y = 0; y < strip.height; y++) {
+                data.get(row);
+                for (int c = 0; c < channels; c++) {
+                    byte[] plane = strip.planes[c];
+                    for (int x = 0, i = c; x < width; x++, i += channels) {
+                        plane[y * width + x] = row[i];
+                    }
+                }
+            }
+            return strip;
+        }
+
+        @Override
+        public boolean rereadsFromStart() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * PNG: строки распаковываются Inflater и восстанавливаются из фильтров по порядку, поток
+     * остаётся открытым между полосами. Ореол следующей полосы берётся из сохранённой
+     * предыдущей, а возврат назад (не бывает при записи по порядку) читает файл заново.
+     * Образцы приводятся к 8 битам так же, как ImageFormat.normalize: 16 бит и серые 1, 2, 4 бита —
+     * с округлением, палитра — через таблицу цветов, альфа-канал отбрасывается.
+     */
+    private static final class PngSource implements StripSource {
+        private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+        private static final int IHDR = 0x49484452;
+        private static final int PLTE = 0x504C5445;
+        private static final int IDAT = 0x49444154;
+        private static final int IEND = 0x49454E44;
+
+        private final File file;
+        private final int width;
+        private final int height;
+        private final int channels;
+        private final int bitDepth;
+        private final int colorType;
+        // Образцов на пиксель: серый, RGB, индекс, серый + альфа, RGBA
+        private final int samples;
+        final boolean interlaced;
+        // Байт на пиксель для фильтров (не меньше 1) и байт в строке без байта фильтра
+        private final int filterStride;
+        private final int rowBytes;
+        private final int[] palette;
+        private final long dataOffset;
+
+        private DataInputStream data;
+        private Inflater inflater;
+        private byte[] previous;
+        private byte[] current;
+        private int nextRow;
+        private PixelBuffer lastStrip;
+        private int lastStripY0;
+
+        PngSource(File file) throws IOException {
+            this.file = file;
+            int[] colors = null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readLong() != SIGNATURE) {
+                    throw new IOException("Файл не является PNG: " + file.getName());
+                }
+                long offset = 8;
+                int[] header = null;
+                while (true) {
+                    int length = in.readInt();
+                    int type = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Повреждённый PNG: " + file.getName());
+                    }
+                    if (type == IDAT || type == IEND) {
+                        dataOffset = offset;
+                        break;
+                    }
+                    if (type == IHDR) {
+                        header = new int[]{in.readInt(), in.readInt(), in.readUnsignedByte(), in.readUnsignedByte(),
+                                in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte()};
+                        skip(in, length - 13);
+                    } else if (type == PLTE) {
+                        colors = new int[length / 3];
+                        for (int i = 0; i < colors.length; i++) {
+                            colors[i] = in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8
+                                    | in.readUnsignedByte();
+                        }
+                        skip(in, length - 3 * colors.length);
+                    } else {
+                        skip(in, length);
+                    }
+                    skip(in, 4);
+                    offset += 12L + length;
+                }
+                if (header == null || header[0] <= 0 || header[1] <= 0 || header[4] != 0 || header[5] != 0) {
+                    throw new IOException("Повреждённый заголовок PNG: " + file.getName());
+                }
+                width = header[0];
+                height = header[1];
+                bitDepth = header[2];
+                colorType = header[3];
+                interlaced = header[6] != 0;
+            } catch (EOFException ex) {
+                throw new IOException("Файл PNG оборван: " + file.getName(), ex);
+            }
+
+            switch (colorType) {
+                case 0:
+                    samples = 1;
+                    break;
+                case 2:
+                    samples = 3;
+                    break;
+                case 3:
+                    samples = 1;
+                    if (colors == null) {
+                        throw new IOException("В PNG с палитрой нет палитры: " + file.getName());
+                    }
+                    break;
+                case 4:
+                    samples = 2;
+                    break;
+                case 6:
+                    samples = 4;
+                    break;
+                default:
+                    throw new IOException("Неизвестный тип цвета PNG: " + colorType);
+            }
+            if (Integer.bitCount(bitDepth) != 1 || bitDepth > 16 || (samples > 1 && bitDepth < 8)) {
+                throw new IOException("Недопустимая разрядность PNG: " + bitDepth);
+            }
+            long bits = (long) width * samples * bitDepth;
+            if ((bits + 7) / 8 >= Integer.MAX_VALUE) {
+                throw new IOException("Строка PNG слишком длинная: " + width + " пикселей");
+            }
+            rowBytes = (int) ((bits + 7) / 8);
+            filterStride = Math.max(1, samples * bitDepth / 8);
+
+            if (colorType == 3) {
+                // Индексы за пределами палитры дают чёрный цвет, как в ImageFormat.normalize
+                palette = Arrays.copyOf(colors, Math.max(1 << bitDepth, colors.length));
+                boolean gray = true;
+                for (int rgb : colors) {
+                    gray &= (rgb >> 16) == (rgb & 0xFF) && ((rgb >> 8) & 0xFF) == (rgb & 0xFF);
+                }
+                channels = gray ? 1 : 3;
+            } else {
+                palette = null;
+                channels = colorType == 0 || colorType == 4 ? 1 : 3;
+            }
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public int channels() {
+            return channels;
+        }
+
+        @Override
+        public PixelBuffer read(int y0, int y1) throws IOException {
+            PixelBuffer strip = new PixelBuffer(width, y1 - y0, channels);
+            int y = y0;
+            // Ореол: строки, которые уже распакованы для предыдущей полосы
+            if (lastStrip != null && y0 >= lastStripY0 && nextRow == lastStripY0 + lastStrip.height) {
+                int end = Math.min(y1, nextRow);
+                for (int c = 0; c < channels; c++) {
+                    System.arraycopy(lastStrip.planes[c], (y0 - lastStripY0) * width, strip.planes[c], 0,
+                            Math.max(0, end - y0) * width);
+                }
+                y = Math.max(y, end);
+            }
+            if (data == null || y < nextRow) {
+                rewind();
+            }
+            while (nextRow < y) {
+                nextRow();
+            }
+            for (; y < y1; y++) {
+                nextRow();
+                convert(strip, y - y0);
+            }
+            lastStrip = strip;
+            lastStripY0 = y0;
+            return strip;
+        }
+
+        @Override
+        public boolean rereadsFromStart() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (data != null) {
+                // Inflater, переданный потоку, сам не освобождается
+                inflater.end();
+                data.close();
+                data = null;
+            }
+        }
+
+        /** Открывает файл заново на первом блоке IDAT. */
+        private void rewind() throws IOException {
+            close();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                in.getChannel().position(dataOffset);
+                DataInputStream chunks = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+                inflater = new Inflater();
+                data = new DataInputStream(new InflaterInputStream(new IdatStream(chunks), inflater, 1 << 16));
+            } catch (IOException | RuntimeException ex) {
+                in.close();
+                throw ex;
+            }
+            previous = new byte[rowBytes];
+            current = new byte[rowBytes];
+            nextRow = 0;
+            lastStrip = null;
+        }
+
+        /** Следующая строка в current: байт фильтра, затем восстановление по предыдущей строке. */
+        private void nextRow() throws IOException {
+            byte[] row = previous;
+            previous = current;
+            current = row;
+            int filter;
+            try {
+                filter = data.readUnsignedByte();
+                data.readFully(row);
+            } catch (EOFException ex) {
+                throw new IOException("Файл PNG оборван на строке " + nextRow, ex);
+            }
+
+            byte[] up = previous;
+            int stride = filterStride;
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = stride; i < rowBytes; i++) {
+                        row[i] += row[i - stride];
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < rowBytes; i++) {
+                        row[i] += up[i];
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= stride ? row[i - stride] & 0xFF : 0;
+                        row[i] += (byte) ((left + (up[i] & 0xFF)) >> 1);
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= stride ? row[i - stride] & 0xFF : 0;
+                        int upLeft = i >= stride ? up[i - stride] & 0xFF : 0;
+                        row[i] += (byte) paeth(left, up[i] & 0xFF, upLeft);
+                    }
+                    break;
+                default:
+                    throw new IOException("Повреждённый PNG: неизвестный фильтр " + filter + " в строке " + nextRow);
+            }
+            nextRow++;
+        }
+
+        private static void skip(DataInputStream in, long count) throws IOException {
+            while (count > 0) {
+                int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    // skipBytes не отличает конец файла от пустого буфера
+                    in.readByte();
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private static int paeth(int left, int up, int upLeft) {
+            int p = left + up - upLeft;
+            int pa = Math.abs(p - left), pb = Math.abs(p - up), pc = Math.abs(p - upLeft);
+            if (pa <= pb && pa <= pc) {
+                return left;
+            }
+            return pb <= pc ? up : upLeft;
+        }
+
+        /** Образцы строки current в строку y полосы. */
+        private void convert(PixelBuffer strip, int y) {
+            byte[] row = current;
+            int out = y * width;
+
+            if (bitDepth < 8) {
+                // Серые или индексы палитры, упакованные по 1, 2 или 4 бита от старших
+                int mask = (1 << bitDepth) - 1;
+                for (int x = 0; x < width; x++) {
+                    int bit = x * bitDepth;
+                    int v = (row[bit >> 3] >> (8 - bitDepth - (bit & 7))) & mask;
+                    if (palette == null) {
+                        strip.planes[0][out + x] = (byte) (v * 255 / mask);
+                    } else {
+                        setColor(strip, out + x, palette[v]);
+                    }
+                }
+                return;
+            }
+
+            int bytes = bitDepth / 8;
+            int step = samples * bytes;
+            if (palette != null) {
+                for (int x = 0; x < width; x++) {
+                    setColor(strip, out + x, palette[row[x] & 0xFF]);
+                }
+                return;
+            }
+            for (int c = 0; c < channels; c++) {
+                byte[] plane = strip.planes[c];
+                for (int x = 0, i = c * bytes; x < width; x++, i += step) {
+                    plane[out + x] = bytes == 1 ? row[i] : scale16((row[i] & 0xFF) << 8 | (row[i + 1] & 0xFF));
+                }
+            }
+        }
+
+        private void setColor(PixelBuffer strip, int index, int rgb) {
+            if (channels == 1) {
+                strip.planes[0][index] = (byte) rgb;
+            } else {
+                strip.planes[0][index] = (byte) (rgb >> 16);
+                strip.planes[1][index] = (byte) (rgb >> 8);
+                strip.planes[2][index] = (byte) rgb;
+            }
+        }
+
+        /** round(v * 255 / 65535), как таблица ImageFormat для 16-битных образцов. */
+        private static byte scale16(int v) {
+            return (byte) ((v * 255L + 32767) / 65535);
+        }
+    }
+
+    /** Данные подряд идущих блоков IDAT как один поток; после последнего — конец потока. */
+    private static final class IdatStream extends InputStream {
+        private final DataInputStream chunks;
+        private int remaining;
+        private boolean started;
+        private boolean finished;
+
+        IdatStream(DataInputStream chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                if (finished) {
+                    return -1;
+                }
+                if (started) {
+                    // CRC предыдущего блока
+                    PngSource.skip(chunks, 4);
+                }
+                started = true;
+                remaining = chunks.readInt();
+                if (chunks.readInt() != PngSource.IDAT) {
+                    finished = true;
+                    return -1;
+                }
+            }
+            int count = chunks.read(buffer, offset, Math.min(length, remaining));
+            if (count < 0) {
+                throw new EOFException("Файл PNG оборван");
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            chunks.close();
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * Векторная (SIMD) реализация свёртки на jdk.incubator.vector.
+ * Строка источника один раз переводится в double с дополнением по radius пикселей с каждой
+ * стороны по правилу BorderMode, после чего каждый вес ядра — это умножение и сложение целых
+ * векторов соседних пикселей без проверок границ. Порядок сложений для каждого пикселя тот же,
+ * что и в скалярных Convolution.direct и separable, а умножение и сложение не сливаются в FMA,
+ * поэтому результат совпадает со скалярным побитно.
+ *
+ * Класс лежит отдельно, чтобы программа собиралась и без модуля jdk.incubator.vector:
+ *   javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorConvolution.java
+ *   java --add-modules jdk.incubator.vector Main
+ * Convolution загружает его по имени и, если класса или модуля нет, остаётся на скалярном пути.
+ */
+final class VectorConvolution implements Convolution.VectorBackend {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    // Дополненная строка для horizontalPass, чтобы не выделять её на каждую строку
+    private static final ThreadLocal<double[]> PADDED = ThreadLocal.withInitial(() -> new double[0]);
+
+    VectorConvolution() {
+    }
+
+    @Override
+    public String description() {
+        return SPECIES.length() + " x double, " + SPECIES.vectorBitSize() + " бит";
+    }
+
+    @Override
+    public void direct(byte[] src, byte[] dst, int width, int height, double[][] kernel, BorderMode border,
+                       int y0, int y1) {
+        int size = kernel.length;
+        int radius = size / 2;
+
+        // Кольцевой буфер дополненных строк, как в Convolution.separable
+        double[][] rows = new double[size][width + 2 * radius];
+        int[] slotRow = new int[size];
+        Arrays.fill(slotRow, -1);
+        double[] acc = new double[width];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+
+            for (int ky = -radius; ky <= radius; ky++) {
+                int py = border.index(y + ky, height);
+                if (py < 0) {
+                    // Строка из нулей (CONSTANT) ничего не добавляет
+                    continue;
+                }
+                int slot = py % size;
+                if (slotRow[slot] != py) {
+                    padRow(src, py * width, width, radius, border, rows[slot]);
+                    slotRow[slot] = py;
+                }
+
+                double[] weights = kernel[ky + radius];
+                for (int kx = 0; kx < size; kx++) {
+                    accumulate(acc, rows[slot], kx, weights[kx], width);
+                }
+            }
+
+            store(acc, dst, y * width, width);
+        }
+    }
+
+    @Override
+    public void separable(byte[] src, byte[] dst, int width, int height, double[] kernel, BorderMode border,
+                          int y0, int y1) {
+        int size = kernel.length;
+        int radius = size / 2;
+
+        double[][] rows = new double[size][width];
+        int[] slotRow = new int[size];
+        Arrays.fill(slotRow, -1);
+        double[] padded = new double[width + 2 * radius];
+        double[] acc = new double[width];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc, 0);
+
+            for (int ky = -radius; ky <= radius; ky++) {
+                int py = border.index(y + ky, height);
+                if (py < 0) {
+                    continue;
+                }
+                int slot = py % size;
+                if (slotRow[slot] != py) {
+                    padRow(src, py * width, width, radius, border, padded);
+                    horizontal(padded, width, kernel, rows[slot]);
+                    slotRow[slot] = py;
+                }
+
+                accumulate(acc, rows[slot], 0, kernel[ky + radius], width);
+            }
+
+            store(acc, dst, y * width, width);
+        }
+    }
+
+    @Override
+    public void horizontalPass(byte[] src, int offset, int width, double[] kernel, BorderMode border, double[] out) {
+        int length = width + kernel.length - 1;
+        double[] padded = PADDED.get();
+        if (padded.length < length) {
+            padded = new double[length];
+            PADDED.set(padded);
+        }
+
+        padRow(src, offset, width, kernel.length / 2, border, padded);
+        horizontal(padded, width, kernel, out);
+    }
+
+    private static void horizontal(double[] padded, int width, double[] kernel, double[] out) {
+        Arrays.fill(out, 0, width, 0);
+        for (int kx = 0; kx < kernel.length; kx++) {
+            accumulate(out, padded, kx, kernel[kx], width);
+        }
+    }
+
+    /** acc[x] += row[x + shift] * weight для всех x < width. */
+    private static void accumulate(double[] acc, double[] row, int shift, double weight, int width) {
+        int x = 0;
+        int bound = SPECIES.loopBound(width);
+
+        for (; x < bound; x += SPECIES.length()) {
+            DoubleVector pixels = DoubleVector.fromArray(SPECIES, row, x + shift);
+            DoubleVector.fromArray(SPECIES, acc, x).add(pixels.mul(weight)).intoArray(acc, x);
+        }
+        for (; x < width; x++) {
+            acc[x] += row[x + shift] * weight;
+        }
+    }
+
+    /** Строка в double с radius пикселями слева и справа, продолженными по правилу border. */
+    private static void padRow(byte[] src, int offset, int width, int radius, BorderMode border, double[] padded) {
+        for (int i = 0; i < radius; i++) {
+            padded[i] = border.value(src, offset, i - radius, width);
+            padded[radius + width + i] = border.value(src, offset, width + i, width);
+        }
+        for (int x = 0; x < width; x++) {
+            padded[radius + x] = src[offset + x] & 0xFF;
+        }
+    }
+
+    private static void store(double[] acc, byte[] dst, int offset, int width) {
+        for (int x = 0; x < width; x++) {
+            dst[offset + x] = (byte) Math.min(Math.max((int) acc[x], 0), 255);
+        }
+    }
+}